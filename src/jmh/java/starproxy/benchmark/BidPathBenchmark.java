@@ -0,0 +1,160 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.test.util.ReflectionTestUtils;
+import starproxy.model.bidRequest.BidRequest;
+import starproxy.model.bidResponse.Bid;
+import starproxy.model.bidResponse.BidResponse;
+import starproxy.model.bidResponse.Ext;
+import starproxy.model.bidResponse.Seatbid;
+import starproxy.model.hivestack.ScheduledVast;
+import starproxy.model.vistar.Advertisement;
+import starproxy.model.vistar.VistarRequest;
+import starproxy.model.vistar.VistarResponse;
+import starproxy.service.BiddingPartners.VistarService;
+import starproxy.util.HivestackVastParser;
+import starproxy.util.StarproxyJson;
+import starproxy.util.UUIDType5;
+import starproxy.util.VastDocuments;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The steps one bid goes through, each on its own so a regression shows up on the step that caused it. Run with
+ * the gc profiler (the jmh profile does by default) to see the bytes allocated per operation next to the time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class BidPathBenchmark {
+
+    private byte[] bidRequestJson;
+    private byte[] vistarResponseJson;
+    private String hivestackVast;
+    private String assetUrl;
+    private Advertisement advertisement;
+    private ByteBuffer vistarVastEntry;
+    private BidResponse bidResponse;
+    private VistarService vistarService;
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream(4096);
+
+    @Setup
+    public void setup() throws IOException {
+        bidRequestJson = resource("bid-request.json");
+        vistarResponseJson = resource("vistar-response.json");
+        hivestackVast = new String(resource("hivestack-vast.xml"), StandardCharsets.UTF_8);
+
+        advertisement = StarproxyJson.OBJECT_MAPPER.readValue(vistarResponseJson, VistarResponse.class).getAdvertisement().get(0);
+        assetUrl = advertisement.getAssetUrl();
+        vistarVastEntry = ByteBuffer.wrap(vistarVastEntry());
+
+        vistarService = new VistarService();
+        ReflectionTestUtils.setField(vistarService, "VISTAR_NETWORK_ID", "network");
+        ReflectionTestUtils.setField(vistarService, "VISTAR_APIKEY", "apikey");
+        ReflectionTestUtils.setField(vistarService, "VISTAR_FRENCH_NETWORK_ID", "network-fr");
+        ReflectionTestUtils.setField(vistarService, "VISTAR_FRENCH_APIKEY", "apikey-fr");
+
+        Bid bid = new Bid();
+        bid.setId(advertisement.getId());
+        bid.setImpid("2");
+        bid.setPrice(0.01);
+        bid.setDealid("deal-1234");
+        bid.setAdid("5d8c0e0e-6f0b-5c7a-9b1e-2a3c4d5e6f70");
+        bid.setNurl("https://starproxy.example.com/starproxy/win?auction=${AUCTION_ID}&bid=${AUCTION_BID_ID}&adid=${AUCTION_AD_ID}&partner=Vistar_EN&device=0b5a7d5e");
+        bid.setLurl("https://starproxy.example.com/starproxy/loss?auction=${AUCTION_ID}&bid=${AUCTION_BID_ID}&loss=${AUCTION_LOSS}&adid=${AUCTION_AD_ID}&partner=Vistar_EN&device=0b5a7d5e");
+        Ext ext = new Ext();
+        ext.setVastUrl("https://starproxy.example.com/starproxy/cachedDocuments/venue-42/2");
+        bid.setExt(ext);
+        Seatbid seatbid = new Seatbid();
+        seatbid.setSeat("starproxy");
+        seatbid.setBid(Collections.singletonList(bid));
+        bidResponse = new BidResponse();
+        bidResponse.setId("5f8d0a2e-7c1b-4e1f-9a0e-3d2c1b0a9f8e");
+        bidResponse.setCur("CAD");
+        bidResponse.setSeatbid(Collections.singletonList(seatbid));
+    }
+
+    @Benchmark
+    public BidRequest readBidRequest() throws IOException {
+        return StarproxyJson.OBJECT_MAPPER.readValue(bidRequestJson, BidRequest.class);
+    }
+
+    @Benchmark
+    public VistarRequest buildVistarRequest() {
+        return vistarService.fetchVistarRequestObject(false);
+    }
+
+    @Benchmark
+    public VistarResponse readVistarResponse() throws IOException {
+        return StarproxyJson.OBJECT_MAPPER.readValue(vistarResponseJson, VistarResponse.class);
+    }
+
+    @Benchmark
+    public ScheduledVast parseHivestackVast() throws Exception {
+        return HivestackVastParser.parse(hivestackVast);
+    }
+
+    @Benchmark
+    public byte[] encodeVistarVast() {
+        return vistarVastEntry();
+    }
+
+    @Benchmark
+    public int renderVistarVast() throws IOException {
+        output.reset();
+        VastDocuments.writeTo(vistarVastEntry, output);
+        return output.size();
+    }
+
+    @Benchmark
+    public String adId() throws URISyntaxException {
+        return UUIDType5.fromUrlWithStarProxyNamespace(assetUrl);
+    }
+
+    @Benchmark
+    public byte[] writeBidResponse() throws IOException {
+        return StarproxyJson.writeBidResponse(bidResponse);
+    }
+
+    private byte[] vistarVastEntry() {
+        return VastDocuments.vistar(advertisement.getProofOfPlayUrl(), advertisement.getLengthInMilliseconds(),
+                advertisement.getWidth(), advertisement.getHeight(), advertisement.getMimeType(), assetUrl);
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        try (InputStream inputStream = BidPathBenchmark.class.getResourceAsStream("/benchmark/" + name)) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
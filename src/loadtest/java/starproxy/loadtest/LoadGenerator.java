@@ -0,0 +1,180 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.loadtest;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.http.MediaType;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open loop load: requests go out on a fixed schedule whatever the response times, and latency is measured from
+ * when a request was due rather than when it was sent, so a stalled server shows up in the percentiles instead of
+ * silently lowering the rate (coordinated omission). Requests that would exceed the in-flight limit are dropped
+ * and counted, never queued.
+ */
+class LoadGenerator {
+
+    /**
+     * One request of the corpus, serialized once up front.
+     */
+    static class Request {
+        final String partner;
+        final byte[] body;
+
+        Request(String partner, byte[] body) {
+            this.partner = partner;
+            this.body = body;
+        }
+    }
+
+    private final WebClient webClient;
+    private final List<Request> corpus;
+    private final int qps;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private int next;
+
+    LoadGenerator(WebClient webClient, List<Request> corpus, int qps, int maxInFlight) {
+        this.webClient = webClient;
+        this.corpus = corpus;
+        this.qps = qps;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * Sends at the target rate for the given time, then waits for the requests still in flight.
+     */
+    Stats run(Duration duration) {
+        Stats stats = new Stats();
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / qps;
+        long startedAt = System.nanoTime();
+        long endAt = startedAt + duration.toNanos();
+        for (long due = startedAt; due < endAt; due += periodNanos) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            stats.sent.increment();
+            if (inFlight.incrementAndGet() > maxInFlight) {
+                inFlight.decrementAndGet();
+                stats.dropped.increment();
+                continue;
+            }
+            send(corpus.get(next++ % corpus.size()), due, stats);
+        }
+        long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (inFlight.get() > 0 && System.nanoTime() < drainUntil) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        stats.finish(System.nanoTime() - startedAt);
+        return stats;
+    }
+
+    private void send(Request request, long due, Stats stats) {
+        webClient.post()
+                .uri("/bids/{partner}", request.partner)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(request.body)
+                .exchange()
+                .flatMap(response -> response.releaseBody().thenReturn(response.rawStatusCode()))
+                .subscribe(status -> stats.complete(status, System.nanoTime() - due),
+                        e -> {
+                            stats.errors.increment();
+                            inFlight.decrementAndGet();
+                        },
+                        inFlight::decrementAndGet);
+    }
+
+    static class Stats {
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private final LongAdder bids = new LongAdder();
+        private final LongAdder noBids = new LongAdder();
+        private final LongAdder otherStatus = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final Recorder latencies = new Recorder(3);
+        private final long gcCountBefore = gcCount();
+        private final long gcTimeBefore = gcTimeMs();
+        private Histogram histogram;
+        private long elapsedNanos;
+        private long gcCount;
+        private long gcTimeMs;
+        private MemoryUsage heap;
+
+        private void complete(int status, long latencyNanos) {
+            latencies.recordValue(latencyNanos);
+            if (status == 200) {
+                bids.increment();
+            } else if (status == 204) {
+                noBids.increment();
+            } else {
+                otherStatus.increment();
+            }
+        }
+
+        private void finish(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+            this.histogram = latencies.getIntervalHistogram();
+            this.gcCount = gcCount() - gcCountBefore;
+            this.gcTimeMs = gcTimeMs() - gcTimeBefore;
+            this.heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        }
+
+        long getCompleted() {
+            return bids.sum() + noBids.sum() + otherStatus.sum();
+        }
+
+        @Override
+        public String toString() {
+            double seconds = elapsedNanos / 1e9;
+            long completed = getCompleted();
+            return String.format(Locale.ROOT,
+                    "sent=%d dropped=%d completed=%d errors=%d throughput_rps=%.1f bids=%d no_bids=%d no_bid_rate=%.3f other_status=%d"
+                            + " latency_ms_p50=%.2f p90=%.2f p99=%.2f p999=%.2f max=%.2f"
+                            + " heap_used_mb=%d heap_committed_mb=%d gc_count=%d gc_time_ms=%d",
+                    sent.sum(), dropped.sum(), completed, errors.sum(), completed / seconds, bids.sum(), noBids.sum(),
+                    completed == 0 ? 0.0 : (double) noBids.sum() / completed, otherStatus.sum(),
+                    ms(histogram.getValueAtPercentile(50)), ms(histogram.getValueAtPercentile(90)),
+                    ms(histogram.getValueAtPercentile(99)), ms(histogram.getValueAtPercentile(99.9)), ms(histogram.getMaxValue()),
+                    heap.getUsed() >> 20, heap.getCommitted() >> 20, gcCount, gcTimeMs);
+        }
+
+        private static double ms(long nanos) {
+            return nanos / 1e6;
+        }
+
+        private static long gcCount() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private static long gcTimeMs() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+    }
+}
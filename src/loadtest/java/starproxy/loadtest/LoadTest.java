@@ -0,0 +1,217 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import starproxy.application.StarproxyApplication;
+import starproxy.model.starproxy.Playlogs;
+import starproxy.repository.PlaylogsRepository;
+import starproxy.util.PlaylogsStore;
+import starproxy.util.StarproxyJson;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Boots starproxy against local stand-ins for Hivestack, Vistar and Reach, with an in-memory database seeded with
+ * screens, and replays bid requests at a fixed rate. Everything runs in this JVM, so heap and GC figures include
+ * the stubs and the load generator.
+ * <p>
+ * Run with {@code mvn -Ploadtest -DskipTests verify -Dloadtest.args="--qps=500 --duration-s=120"}. Options:
+ * <ul>
+ * <li>{@code --qps}, {@code --duration-s}, {@code --warmup-s}, {@code --max-in-flight}: the load</li>
+ * <li>{@code --partners}: comma separated partners the requests are spread over, e.g. {@code hivestack,vistar} or {@code auto};
+ * vistar requests for screens seeded as French go to vistar_french</li>
+ * <li>{@code --screens}: screens seeded into playlogs; {@code --creatives}: creative pool size per partner</li>
+ * <li>{@code --corpus}: JSON lines file of bid requests to replay instead of synthetic ones; their device ifa is
+ * rewritten to a seeded screen unless {@code --rewrite-ifa=false}</li>
+ * <li>{@code --hivestack.*}, {@code --vistar.*}, {@code --reach.*}: stub behaviour, see {@link StubBehaviour}</li>
+ * <li>{@code --app.<property>}: any starproxy property, e.g. {@code --app.webclient.hivestack.max-connections=100}</li>
+ * </ul>
+ */
+@Slf4j
+public class LoadTest {
+
+    private static final String SCREEN_PREFIX = "loadtest-screen-";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = options(args);
+        int qps = Integer.parseInt(options.getOrDefault("qps", "200"));
+        int screens = Integer.parseInt(options.getOrDefault("screens", "500"));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup-s", "15")));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration-s", "60")));
+
+        StubBehaviour hivestack = StubBehaviour.fromOptions("hivestack", options, 25, 150, 0.005, 0.8);
+        StubBehaviour vistar = StubBehaviour.fromOptions("vistar", options, 30, 200, 0.005, 0.7);
+        StubBehaviour reach = StubBehaviour.fromOptions("reach", options, 40, 250, 0, 1);
+        try (PartnerStubs stubs = new PartnerStubs(hivestack, vistar, reach, Integer.parseInt(options.getOrDefault("creatives", "200")));
+             ConfigurableApplicationContext app = start(stubs, options)) {
+            seed(app, screens);
+            List<LoadGenerator.Request> corpus = corpus(options, screens);
+            String port = app.getEnvironment().getProperty("local.server.port");
+            LoadGenerator generator = new LoadGenerator(webClient("http://127.0.0.1:" + port), corpus,
+                    qps, Integer.parseInt(options.getOrDefault("max-in-flight", "2000")));
+
+            log.info("Warming up for {}s at {} qps over {} requests", warmup.getSeconds(), qps, corpus.size());
+            log.info("event=loadtest_warmup {}", generator.run(warmup));
+            log.info("Measuring for {}s at {} qps", duration.getSeconds(), qps);
+            LoadGenerator.Stats stats = generator.run(duration);
+            log.info("event=loadtest_report qps_target={} screens={} {}", qps, screens, stats);
+            log.info("event=loadtest_stubs {}", stubs.getCalls());
+        }
+        System.exit(0);
+    }
+
+    private static ConfigurableApplicationContext start(PartnerStubs stubs, Map<String, String> options) throws IOException {
+        Path spoolFile = Files.createTempFile("starproxy-loadtest", ".spool");
+        Map<String, String> properties = new HashMap<>();
+        properties.put("server.port", "0");
+        properties.put("spring.main.banner-mode", "off");
+        properties.put("spring.datasource.driver-class-name", "org.h2.Driver");
+        properties.put("spring.datasource.url", "jdbc:h2:mem:starproxy;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1");
+        properties.put("spring.datasource.username", "sa");
+        properties.put("spring.datasource.password", "");
+        properties.put("spring.jpa.database-platform", "org.hibernate.dialect.H2Dialect");
+        properties.put("hivestack.enabled", "true");
+        properties.put("hivestack.baseurl", stubs.baseUrl());
+        properties.put("vistar.enabled", "true");
+        properties.put("vistar.french.enabled", "true");
+        properties.put("vistar.staging.baseurl", stubs.baseUrl());
+        properties.put("vistar.production.baseurl", stubs.baseUrl());
+        properties.put("reach.baseurl", stubs.baseUrl());
+        properties.put("vastserver.baseurl", "http://127.0.0.1");
+        properties.put("creatives.write-behind.spool-file", spoolFile.toString());
+        properties.put("logging.level.starproxy", "WARN");
+        properties.put("logging.level.starproxy.loadtest", "INFO");
+        options.forEach((key, value) -> {
+            if (key.startsWith("app.")) {
+                properties.put(key.substring("app.".length()), value);
+            }
+        });
+        // as command line arguments, so they take precedence over application.yml
+        return new SpringApplicationBuilder(StarproxyApplication.class)
+                .run(properties.entrySet().stream()
+                        .map(property -> "--" + property.getKey() + "=" + property.getValue())
+                        .toArray(String[]::new));
+    }
+
+    // every screen plays Hivestack and Vistar, every fourth one Vistar in French
+    private static boolean isFrench(String ifa) {
+        return ifa.startsWith(SCREEN_PREFIX) && Integer.parseInt(ifa.substring(SCREEN_PREFIX.length())) % 4 == 3;
+    }
+
+    private static void seed(ConfigurableApplicationContext app, int screens) {
+        List<Playlogs> playlogs = new ArrayList<>(screens);
+        for (int i = 0; i < screens; i++) {
+            Playlogs playlog = new Playlogs();
+            playlog.setReachDeviceIfa(SCREEN_PREFIX + i);
+            playlog.setHivestackDisplayUuid("loadtest-display-" + i);
+            playlog.setHivestackEnabled("Y");
+            playlog.setVistarEnabled("Y");
+            playlog.setVistarLanguage(isFrench(SCREEN_PREFIX + i) ? "FR" : "EN");
+            playlog.setGeneratorId("loadtest:panel-" + i);
+            playlog.setRottAdWidth(1920);
+            playlog.setRottAdHeight(1080);
+            playlogs.add(playlog);
+        }
+        app.getBean(PlaylogsRepository.class).saveAll(playlogs);
+        PlaylogsStore playlogsStore = app.getBean(PlaylogsStore.class);
+        playlogsStore.sync();
+        log.info("Seeded {} screens, playlogs store holds {}", screens, playlogsStore.getPlaylogs().size());
+    }
+
+    private static List<LoadGenerator.Request> corpus(Map<String, String> options, int screens) throws IOException {
+        String[] partners = options.getOrDefault("partners", "hivestack,vistar").split(",");
+        boolean rewriteIfa = Boolean.parseBoolean(options.getOrDefault("rewrite-ifa", "true"));
+        List<JsonNode> requests = new ArrayList<>();
+        if (options.containsKey("corpus")) {
+            for (String line : Files.readAllLines(Paths.get(options.get("corpus")), StandardCharsets.UTF_8)) {
+                if (!line.isBlank()) {
+                    requests.add(StarproxyJson.OBJECT_MAPPER.readTree(line));
+                }
+            }
+        } else {
+            try (InputStream template = LoadTest.class.getResourceAsStream("/loadtest/bid-request.json")) {
+                JsonNode request = StarproxyJson.OBJECT_MAPPER.readTree(template);
+                for (int i = 0; i < screens; i++) {
+                    requests.add(request.deepCopy());
+                }
+            }
+        }
+        List<LoadGenerator.Request> corpus = new ArrayList<>(requests.size() * partners.length);
+        for (int i = 0; i < requests.size(); i++) {
+            ObjectNode request = (ObjectNode) requests.get(i);
+            if (rewriteIfa || !options.containsKey("corpus")) {
+                ((ObjectNode) request.with("device")).put("ifa", SCREEN_PREFIX + (i % screens));
+            }
+            for (String partner : partners) {
+                partner = partner.strip();
+                if ("vistar".equals(partner) && isFrench(request.path("device").path("ifa").asText())) {
+                    partner = "vistar_french";
+                }
+                request.put("id", "loadtest-" + i + "-" + partner);
+                corpus.add(new LoadGenerator.Request(partner, StarproxyJson.OBJECT_MAPPER.writeValueAsBytes(request)));
+            }
+        }
+        return corpus;
+    }
+
+    private static WebClient webClient(String baseUrl) {
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("loadtest")
+                .maxConnections(4096)
+                .pendingAcquireMaxCount(-1)
+                .build();
+        return WebClient.builder()
+                .baseUrl(baseUrl)
+                .clientConnector(new ReactorClientHttpConnector(HttpClient.create(connectionProvider)))
+                .build();
+    }
+
+    // --key=value, a bare --flag means true
+    private static Map<String, String> options(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Options are given as --key=value: " + arg);
+            }
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+                options.put(arg.substring(2), "true");
+            } else {
+                options.put(arg.substring(2, equals), arg.substring(equals + 1));
+            }
+        }
+        return options;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.loadtest;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import reactor.core.publisher.Mono;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.http.server.HttpServerRequest;
+import reactor.netty.http.server.HttpServerResponse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * One local HTTP server standing in for Hivestack, Vistar and Reach, answering the calls starproxy makes with
+ * canned documents after a latency drawn from each upstream's {@link StubBehaviour}. Creatives come from a fixed
+ * pool, so registrations settle after the first few hundred bids like they do in production.
+ */
+@Slf4j
+class PartnerStubs implements AutoCloseable {
+
+    private static final String VAST = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<VAST version=\"2.0\">\n" +
+            "  <Ad id=\"1\">\n" +
+            "    <InLine>\n" +
+            "      <AdSystem>Hivestack</AdSystem>\n" +
+            "      <Impression><![CDATA[https://stub.hivestack.local/pop?id=%d]]></Impression>\n" +
+            "      <Creatives>\n" +
+            "        <Creative>\n" +
+            "          <Linear>\n" +
+            "            <Duration>00:00:10</Duration>\n" +
+            "            <MediaFiles>\n" +
+            "              <MediaFile delivery=\"progressive\" type=\"video/mp4\" width=\"1920\" height=\"1080\">" +
+            "<![CDATA[%s]]></MediaFile>\n" +
+            "            </MediaFiles>\n" +
+            "          </Linear>\n" +
+            "        </Creative>\n" +
+            "      </Creatives>\n" +
+            "    </InLine>\n" +
+            "  </Ad>\n" +
+            "</VAST>";
+    private static final String NOTHING_SCHEDULED = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<VAST version=\"2.0\"></VAST>";
+    private static final String VISTAR_AD = "{\"advertisement\":[{\"id\":\"stub-ad-%d\"," +
+            "\"proof_of_play_url\":\"https://stub.vistar.local/pop/%d\",\"expiration_url\":\"%sexpire/%d\"," +
+            "\"display_area_id\":\"1\",\"asset_url\":\"%s\",\"width\":1920,\"height\":1080,\"mime_type\":\"video/mp4\"," +
+            "\"length_in_seconds\":15,\"length_in_milliseconds\":15000,\"advertiser\":\"Stub Advertiser\"}]}";
+    private static final String VISTAR_NO_AD = "{\"advertisement\":[]}";
+    private static final String TOKEN = "{\"access_token\":\"stub-token\",\"expires_in\":3600}";
+
+    private final StubBehaviour hivestack;
+    private final StubBehaviour vistar;
+    private final StubBehaviour reach;
+    private final int creativePoolSize;
+    private final AtomicInteger reachIds = new AtomicInteger();
+    private final Map<String, LongAdder> calls = new ConcurrentHashMap<>();
+    private final DisposableServer server;
+
+    PartnerStubs(StubBehaviour hivestack, StubBehaviour vistar, StubBehaviour reach, int creativePoolSize) {
+        this.hivestack = hivestack;
+        this.vistar = vistar;
+        this.reach = reach;
+        this.creativePoolSize = creativePoolSize;
+        this.server = HttpServer.create()
+                .host("127.0.0.1")
+                .port(0)
+                .handle(this::handle)
+                .bindNow();
+        log.info("Partner stubs listening on {}: {} / {} / {}", baseUrl(), hivestack, vistar, reach);
+    }
+
+    /**
+     * @return base url with a trailing slash, usable as base url of every upstream
+     */
+    String baseUrl() {
+        return "http://127.0.0.1:" + server.port() + "/";
+    }
+
+    /**
+     * @return calls answered so far by endpoint, errors counted separately
+     */
+    Map<String, Long> getCalls() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        calls.forEach((endpoint, count) -> snapshot.put(endpoint, count.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public void close() {
+        server.disposeNow();
+    }
+
+    private Publisher<Void> handle(HttpServerRequest request, HttpServerResponse response) {
+        // upstream paths are configured with and without a leading slash, so the base url can end up doubled
+        String path = request.uri().replaceFirst("^/+", "/").replaceFirst("\\?.*$", "");
+        if (path.endsWith("/schedulevast")) {
+            return answer(request, response, "hivestack.schedulevast", hivestack, "application/xml", () -> hivestack.nextFill()
+                    ? String.format(VAST, ThreadLocalRandom.current().nextLong(), creativeUrl("hivestack"))
+                    : NOTHING_SCHEDULED);
+        }
+        if (path.startsWith("/nirvana/") && path.endsWith("/creatives")) {
+            return answer(request, response, "hivestack.creatives", hivestack, "application/json", () ->
+                    "[{\"url\":\"" + creativeUrl("hivestack") + "\",\"mime_type\":\"video/mp4\",\"advertiser_name\":\"Stub Advertiser\"}]");
+        }
+        if (path.endsWith("/get_ad/json")) {
+            return answer(request, response, "vistar.get_ad", vistar, "application/json", () -> {
+                if (!vistar.nextFill()) {
+                    return VISTAR_NO_AD;
+                }
+                long id = ThreadLocalRandom.current().nextLong(Long.MAX_VALUE);
+                return String.format(VISTAR_AD, id, id, baseUrl(), id, creativeUrl("vistar"));
+            });
+        }
+        if (path.startsWith("/expire/")) {
+            return answer(request, response, "vistar.expire", vistar, "application/json", () -> "{}");
+        }
+        if (path.endsWith("/get_asset/json")) {
+            return answer(request, response, "vistar.get_asset", vistar, "application/json", () ->
+                    "{\"asset\":[{\"asset_url\":\"" + creativeUrl("vistar") + "\",\"mime_type\":\"video/mp4\",\"creative_name\":\"Stub Creative\"}]}");
+        }
+        if (path.endsWith("/oauth2/token/")) {
+            return answer(request, response, "reach.oauth2_token", reach, "application/json", () -> TOKEN);
+        }
+        if (path.endsWith("/entity_creatives/")) {
+            return answer(request, response, "reach.entity_creatives", reach, "application/json", () -> "{\"id\":" + reachIds.incrementAndGet() + "}");
+        }
+        count("unknown");
+        log.warn("No stub for {} {}", request.method(), request.uri());
+        return response.status(HttpResponseStatus.NOT_FOUND).send();
+    }
+
+    private Publisher<Void> answer(HttpServerRequest request, HttpServerResponse response, String endpoint, StubBehaviour behaviour,
+                                   String contentType, Supplier<String> body) {
+        boolean error = behaviour.nextError();
+        count(error ? endpoint + ".error" : endpoint);
+        // read the request body fully before answering, as the real servers would
+        return request.receive().then()
+                .then(Mono.delay(behaviour.nextLatency()))
+                .then(Mono.defer(() -> {
+                    if (error) {
+                        return response.status(HttpResponseStatus.INTERNAL_SERVER_ERROR).send().then();
+                    }
+                    return response.header("Content-Type", contentType)
+                            .sendString(Mono.just(body.get()), StandardCharsets.UTF_8)
+                            .then();
+                }));
+    }
+
+    private String creativeUrl(String partner) {
+        return "https://stub." + partner + ".local/creatives/" + ThreadLocalRandom.current().nextInt(creativePoolSize) + ".mp4";
+    }
+
+    private void count(String endpoint) {
+        calls.computeIfAbsent(endpoint, e -> new LongAdder()).increment();
+    }
+}
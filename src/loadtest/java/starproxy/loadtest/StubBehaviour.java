@@ -0,0 +1,79 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.loadtest;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Latency and error rate of one stand-in upstream. Latencies are log-normal, fitted to the configured median and
+ * p99, which is close to what partner ad servers show and gives a realistic tail.
+ */
+class StubBehaviour {
+
+    // z-score of the 99th percentile of a standard normal distribution
+    private static final double Z_99 = 2.326;
+
+    private final String name;
+    private final double mu;
+    private final double sigma;
+    private final double errorRate;
+    private final double fillRate;
+
+    StubBehaviour(String name, double medianMs, double p99Ms, double errorRate, double fillRate) {
+        if (medianMs <= 0 || p99Ms < medianMs) {
+            throw new IllegalArgumentException(name + ": latency median must be positive and not above p99");
+        }
+        this.name = name;
+        this.mu = Math.log(medianMs);
+        this.sigma = (Math.log(p99Ms) - mu) / Z_99;
+        this.errorRate = errorRate;
+        this.fillRate = fillRate;
+    }
+
+    /**
+     * Reads {@code <name>.latency-ms}, {@code <name>.latency-p99-ms}, {@code <name>.error-rate} and
+     * {@code <name>.fill-rate} from the options, falling back to the given defaults.
+     */
+    static StubBehaviour fromOptions(String name, Map<String, String> options, double medianMs, double p99Ms, double errorRate, double fillRate) {
+        return new StubBehaviour(name,
+                Double.parseDouble(options.getOrDefault(name + ".latency-ms", String.valueOf(medianMs))),
+                Double.parseDouble(options.getOrDefault(name + ".latency-p99-ms", String.valueOf(p99Ms))),
+                Double.parseDouble(options.getOrDefault(name + ".error-rate", String.valueOf(errorRate))),
+                Double.parseDouble(options.getOrDefault(name + ".fill-rate", String.valueOf(fillRate))));
+    }
+
+    Duration nextLatency() {
+        double ms = Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+        return Duration.ofNanos((long) (ms * 1_000_000));
+    }
+
+    boolean nextError() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    boolean nextFill() {
+        return fillRate >= 1 || ThreadLocalRandom.current().nextDouble() < fillRate;
+    }
+
+    @Override
+    public String toString() {
+        return name + " median_ms=" + Math.round(Math.exp(mu)) + " p99_ms=" + Math.round(Math.exp(mu + sigma * Z_99))
+                + " error_rate=" + errorRate + " fill_rate=" + fillRate;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.application;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import starproxy.util.LocalOnlySharedCache;
+import starproxy.util.RedisSharedCache;
+import starproxy.util.SharedCache;
+
+import java.time.Duration;
+
+@Configuration
+public class SharedCacheConfiguration {
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(name = "shared-cache.type", havingValue = "redis")
+    SharedCache redisSharedCache(@Value("${shared-cache.redis.uri}") String uri,
+                                 @Value("${shared-cache.redis.key-prefix}") String keyPrefix,
+                                 @Value("${shared-cache.redis.timeout-ms}") Long timeoutMs) {
+        return new RedisSharedCache(uri, keyPrefix, Duration.ofMillis(timeoutMs));
+    }
+
+    @Bean
+    @ConditionalOnProperty(name = "shared-cache.type", havingValue = "none", matchIfMissing = true)
+    SharedCache localOnlySharedCache() {
+        return new LocalOnlySharedCache();
+    }
+}
@@ -41,9 +41,4 @@ public class StarproxyApplication {
         return WebClient.builder();
     }
 
-    @Bean
-    public WebClient getWebClient() {
-        return WebClient.create();
-    }
-
 }
@@ -22,20 +22,30 @@ import starproxy.model.bidRequest.BidRequest;
 import starproxy.service.BidService;
 import starproxy.service.BiddingPartners.HivestackService;
 import starproxy.service.BiddingPartners.VistarService;
+import starproxy.service.CreativePrefetchService;
 import starproxy.service.CreativeService;
 import starproxy.util.CacheData;
+import starproxy.util.LogSampler;
 import starproxy.util.ReachSspCodes;
+import starproxy.util.VastDocuments;
+import starproxy.util.VastRouting;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Mono;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.Set;
 
 @RestController
 @CrossOrigin
@@ -57,6 +67,15 @@ public class BidController {
     @Autowired
     CreativeService creativeService;
 
+    @Autowired
+    CreativePrefetchService creativePrefetchService;
+
+    @Autowired
+    LogSampler logSampler;
+
+    @Autowired
+    VastRouting vastRouting;
+
     @Value("${vistar.enabled}")
     boolean vistarEnabled;
 
@@ -67,17 +86,50 @@ public class BidController {
     boolean vistarFrenchEnabled;
 
     @GetMapping(value = "/cachedDocuments/{uuid}/{impressionId}")
-    public ResponseEntity<String> vastCache(@PathVariable("uuid") String uuid, @PathVariable("impressionId") String impressionId) {
-        return new ResponseEntity<>(cacheData.getVastDocument(uuid + impressionId).getVastDocument(), HttpStatus.OK);
+    public void vastCache(@PathVariable("uuid") String uuid, @PathVariable("impressionId") String impressionId,
+                          @RequestParam(value = VastRouting.TOKEN_PARAMETER, required = false) String token,
+                          @RequestHeader(value = VastRouting.FORWARDED_HEADER, required = false) String forwarded,
+                          HttpServletResponse response) throws IOException {
+        VastRouting.Route route = vastRouting.verify(uuid, impressionId, token);
+        if (route != null && route.getEntry() != null) {
+            writeVastDocument(ByteBuffer.wrap(route.getEntry()), response);
+            return;
+        }
+        if (cacheData.readVastDocument(uuid + impressionId, entry -> writeVastDocument(entry, response))) {
+            return;
+        }
+        if (route != null && forwarded == null && !route.getNodeUrl().equals(vastRouting.getNodeUrl())) {
+            byte[] document = vastRouting.fetchFromNode(route.getNodeUrl(), uuid, impressionId);
+            if (document != null) {
+                response.setContentType(MediaType.APPLICATION_XML_VALUE);
+                response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+                response.setContentLength(document.length);
+                response.getOutputStream().write(document);
+                return;
+            }
+        }
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND);
     }
 
+    private void writeVastDocument(ByteBuffer entry, HttpServletResponse response) throws IOException {
+        int length = VastDocuments.renderedLength(entry);
+        response.setContentType(MediaType.APPLICATION_XML_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentLength(length);
+        // the whole document has to fit the response buffer, so writing it never waits on the client
+        // while the store is locked
+        response.setBufferSize(Math.max(response.getBufferSize(), length));
+        VastDocuments.writeTo(entry, response.getOutputStream());
+    }
+
+    // runs block until the prefetch is done, so a slow run delays the next one instead of overlapping it
     @Scheduled(fixedRate = 3600 * 1000, initialDelay = 10 * 1000)
     public void loadUpcomingHivestackCreatives() {
         if (hivestackEnabled) {
             try {
-                hivestackService.fetchUpcomingHivestackCreatives();
+                creativePrefetchService.prefetchHivestackCreatives();
             } catch (Exception e) {
-                log.error("unexpected exception fetching hivestack creatives: " + e.getMessage(), e);
+                log.error("unexpected exception fetching hivestack creatives: {}", e.getMessage(), e);
             }
         }
     }
@@ -85,7 +137,11 @@ public class BidController {
     @Scheduled(fixedRate = 3600 * 1000, initialDelay = 10 * 1000)
     public void loadUpcomingVistarCreatives() {
         if (vistarEnabled) {
-            vistarService.fetchUpcomingVistarCreative();
+            try {
+                creativePrefetchService.prefetchVistarCreatives();
+            } catch (Exception e) {
+                log.error("unexpected exception fetching vistar creatives: {}", e.getMessage(), e);
+            }
         }
     }
 
@@ -96,7 +152,9 @@ public class BidController {
                            @RequestParam(required = true) String partner,
                            @RequestParam(required = true) String device
     ) {
-        log.info(partner + " auction win event - auction: " + auction + " bid: " + bid + " adid: " + adid + " device: " + device);
+        if (logSampler.sample("auction_win")) {
+            log.info("event=auction_win partner={} auction={} bid={} adid={} device={}", partner, auction, bid, adid, device);
+        }
     }
 
     @GetMapping(value = "/loss")
@@ -111,34 +169,55 @@ public class BidController {
         if (lossurl != null) {
             vistarService.callNotifyUrl(lossurl);
         }
-        log.info(partner + " auction loss event - auction: " + auction + " bid: " + bid + " adid: " + adid + " device: " + device + " loss: " + ReachSspCodes.getError(loss));
+        if (logSampler.sample("auction_loss")) {
+            ReachSspCodes.Code lossCode = ReachSspCodes.getError(loss);
+            log.info("event=auction_loss partner={} auction={} bid={} adid={} device={} loss={} reason=\"{}\"", partner, auction, bid, adid, device, lossCode.getCode(), lossCode.getDescription());
+        }
     }
 
     @PostMapping(value = "/bids/{partner}", consumes = {"application/json"}, produces = {"application/json"})
     @ResponseBody
-    public Mono<String> bidsForPartners(@RequestBody BidRequest bidRequest, @PathVariable("partner") String partner) throws JsonProcessingException, UnsupportedEncodingException {
+    public Mono<byte[]> bidsForPartners(@RequestBody BidRequest bidRequest, @PathVariable("partner") String partner,
+                                        @RequestAttribute(value = ArrivalTimeFilter.ARRIVED_AT, required = false) Long arrivedAt) throws JsonProcessingException, UnsupportedEncodingException {
+        long receivedAt = arrivedAt != null ? arrivedAt : System.nanoTime();
         switch (partner) {
             case "vistar":
                 if (vistarEnabled) {
-                    return bidService.biddingRequest(bidRequest, BroadsignPartner.BROADSIGN_VISTAR);
+                    return bidService.biddingRequest(bidRequest, BroadsignPartner.BROADSIGN_VISTAR, receivedAt);
                 } else {
                     log.error("received bidrequest for vistar but vistar is disabled");
                     return Mono.empty();
                 }
             case "vistar_french":
                 if (vistarFrenchEnabled) {
-                    return bidService.biddingRequest(bidRequest, BroadsignPartner.BROADSIGN_VISTAR_FR);
+                    return bidService.biddingRequest(bidRequest, BroadsignPartner.BROADSIGN_VISTAR_FR, receivedAt);
                 } else {
                     log.error("received bidrequest for vistar_french but vistar_french is disabled");
                     return Mono.empty();
                 }
             case "hivestack":
                 if (hivestackEnabled) {
-                    return bidService.biddingRequest(bidRequest, BroadsignPartner.BROADSIGN_HIVESTACK);
+                    return bidService.biddingRequest(bidRequest, BroadsignPartner.BROADSIGN_HIVESTACK, receivedAt);
                 } else {
                     log.error("received bidrequest for hivestack but hivestack is disabled");
                     return Mono.empty();
                 }
+            case "auto":
+                Set<BroadsignPartner> enabledPartners = EnumSet.noneOf(BroadsignPartner.class);
+                if (hivestackEnabled) {
+                    enabledPartners.add(BroadsignPartner.BROADSIGN_HIVESTACK);
+                }
+                if (vistarEnabled) {
+                    enabledPartners.add(BroadsignPartner.BROADSIGN_VISTAR);
+                }
+                if (vistarFrenchEnabled) {
+                    enabledPartners.add(BroadsignPartner.BROADSIGN_VISTAR_FR);
+                }
+                if (enabledPartners.isEmpty()) {
+                    log.error("received bidrequest for auto but every partner is disabled");
+                    return Mono.empty();
+                }
+                return bidService.autoBiddingRequest(bidRequest, enabledPartners, receivedAt);
             default:
                 throw new ResponseStatusException(HttpStatus.BAD_REQUEST);
         }
@@ -0,0 +1,26 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.enums;
+
+/**
+ * How {@code /bids/auto} picks among the bids of the partners it asked.
+ */
+public enum AutoBidStrategy {
+    FIRST, // the first bid to arrive
+    PRIORITY, // the bid of the highest ranked partner in bid.auto.priority
+    PRICE // the highest price, ties go by priority
+}
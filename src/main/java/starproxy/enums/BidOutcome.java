@@ -0,0 +1,41 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.enums;
+
+/**
+ * How a bid request for one partner ended, used as a metric tag.
+ */
+public enum BidOutcome {
+    BID("bid"),
+    NO_MAPPING("no-mapping"), // the screen has no route to the partner
+    NOTHING_SCHEDULED("nothing-scheduled"), // the partner had no ad for the screen
+    UNKNOWN_MIME("unknown-mime"),
+    NOT_SERVABLE("not-servable"), // an ad we can't serve yet: creative unknown to Reach, or its document not cacheable
+    UPSTREAM_ERROR("upstream-error"),
+    TIMEOUT("timeout"),
+    OUTBID("outbid"); // a bid /bids/auto dropped for another partner's
+
+    private final String tag;
+
+    BidOutcome(String tag) {
+        this.tag = tag;
+    }
+
+    public String getTag() {
+        return tag;
+    }
+}
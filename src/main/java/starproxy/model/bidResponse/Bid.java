@@ -57,5 +57,8 @@ public class Bid {
     private Ext ext;
     @JsonIgnore
     private String uuid;
+    // Vistar's url for giving an ad back, called when the bid is dropped for another partner's
+    @JsonIgnore
+    private String expirationUrl;
 
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.model.cache;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Partner routes for one Reach screen. A null id means the screen is not enabled for that partner.
+ */
+@Value
+@Builder
+public class ScreenRoutes {
+
+    String hivestackDisplayUuid;
+    String vistarVenueId;
+    String vistarFrenchVenueId;
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.model.cache;
+
+import lombok.Value;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Immutable view of all screen routes keyed by Reach device ifa. A new snapshot is built on every refresh
+ * and published as a whole, so readers never see a half-built map.
+ */
+@Value
+public class ScreenRoutesSnapshot {
+
+    public static final ScreenRoutesSnapshot EMPTY = new ScreenRoutesSnapshot(0, Instant.EPOCH, Collections.emptyMap());
+
+    long version;
+    Instant builtAt;
+    Map<String, ScreenRoutes> routes;
+
+    public ScreenRoutes get(String reachDeviceIfa) {
+        return routes.get(reachDeviceIfa);
+    }
+
+    public int size() {
+        return routes.size();
+    }
+}
@@ -14,14 +14,15 @@
  * limitations under the License.
  */
 
-package starproxy.model.cache;
+package starproxy.model.hivestack;
 
 import lombok.Data;
 
-import java.io.Serializable;
-
 @Data
-public class VastDocument implements Serializable {
-    private String id;
-    private String vastDocument;
+public class ScheduledVast {
+
+    private String impressionUrl;
+    private String mediaType;
+    private String mediaFile;
+
 }
@@ -22,7 +22,7 @@ import javax.persistence.*;
 import java.io.Serializable;
 
 @Entity
-@Table(name = "creatives")
+@Table(name = "creatives", indexes = @Index(name = "uk_creatives_hivestack_url", columnList = "hivestack_url", unique = true))
 @Data
 public class Creatives implements Serializable {
 
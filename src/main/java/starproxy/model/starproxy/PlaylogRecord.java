@@ -0,0 +1,47 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.model.starproxy;
+
+import lombok.AllArgsConstructor;
+import lombok.Value;
+
+import java.time.Instant;
+
+/**
+ * Read only projection of a playlogs row, loaded without entity hydration or persistence context tracking.
+ */
+@Value
+@AllArgsConstructor
+public class PlaylogRecord {
+
+    Integer id;
+    String reachDeviceIfa;
+    String hivestackDisplayUuid;
+    String vistarEnabled;
+    String vistarLanguage;
+    String hivestackEnabled;
+    String generatorId;
+    Integer rottAdWidth;
+    Integer rottAdHeight;
+    Instant updatedAt;
+
+    public PlaylogRecord(Integer id, String reachDeviceIfa, String hivestackDisplayUuid, String vistarEnabled, String vistarLanguage,
+                         String hivestackEnabled, String generatorId, Integer rottAdWidth, Integer rottAdHeight) {
+        this(id, reachDeviceIfa, hivestackDisplayUuid, vistarEnabled, vistarLanguage, hivestackEnabled, generatorId,
+                rottAdWidth, rottAdHeight, null);
+    }
+}
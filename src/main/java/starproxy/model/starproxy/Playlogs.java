@@ -19,10 +19,11 @@ package starproxy.model.starproxy;
 import lombok.Data;
 
 import javax.persistence.*;
+import java.time.Instant;
 
 
 @Entity
-@Table(name = "playlogs")
+@Table(name = "playlogs", indexes = @Index(name = "idx_playlogs_updated_at", columnList = "updated_at"))
 @Data
 public class Playlogs {
 
@@ -54,4 +55,10 @@ public class Playlogs {
     @Column(name = "rott_ad_height")
     private Integer rottAdHeight;
 
+    // maintained by MySQL on every insert and update, used as the watermark for delta syncs. playlogs is shared
+    // with other writers, so existing tables get it from db/playlogs-updated-at.sql rather than ddl-auto
+    @Column(name = "updated_at", insertable = false, updatable = false,
+            columnDefinition = "TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP")
+    private Instant updatedAt;
+
 }
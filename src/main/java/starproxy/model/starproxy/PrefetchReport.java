@@ -0,0 +1,58 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.model.starproxy;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one creative prefetch run, updated concurrently while the run is in flight.
+ */
+@Getter
+public class PrefetchReport {
+
+    private final String partner;
+    private final long startedAt = System.nanoTime();
+    private final LongAdder screens = new LongAdder();
+    private final LongAdder screensFailed = new LongAdder();
+    private final LongAdder creatives = new LongAdder();
+    private final LongAdder creativesKnown = new LongAdder();
+    private final LongAdder creativesRegistered = new LongAdder();
+    private final LongAdder creativesNotRegistered = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchesFailed = new LongAdder();
+
+    public PrefetchReport(String partner) {
+        this.partner = partner;
+    }
+
+    @Override
+    public String toString() {
+        return "partner=" + partner +
+                " screens=" + screens.sum() +
+                " screens_failed=" + screensFailed.sum() +
+                " creatives=" + creatives.sum() +
+                " known=" + creativesKnown.sum() +
+                " registered=" + creativesRegistered.sum() +
+                " not_registered=" + creativesNotRegistered.sum() +
+                " batches=" + batches.sum() +
+                " batches_with_failures=" + batchesFailed.sum() +
+                " duration_ms=" + Duration.ofNanos(System.nanoTime() - startedAt).toMillis();
+    }
+}
@@ -19,6 +19,7 @@ package starproxy.repository;
 
 import starproxy.model.starproxy.Creatives;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
@@ -28,5 +29,6 @@ import java.util.List;
 @Transactional
 public interface CreativesRepository extends JpaRepository<Creatives, Long> {
 
-    boolean existsCreativeByHivestackUrl(String hivestackUrl);
+    @Query("select c.hivestackUrl from Creatives c where c.hivestackUrl is not null")
+    List<String> findAllHivestackUrls();
 }
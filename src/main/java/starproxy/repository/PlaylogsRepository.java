@@ -16,13 +16,33 @@
 
 package starproxy.repository;
 
+import starproxy.model.starproxy.PlaylogRecord;
 import starproxy.model.starproxy.Playlogs;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.time.Instant;
 import java.util.List;
 
 @Repository
 public interface PlaylogsRepository extends JpaRepository<Playlogs, Long> {
-    List<Playlogs> findAllByReachDeviceIfaNotNull();
+
+    @Query("select new starproxy.model.starproxy.PlaylogRecord(p.id, p.reachDeviceIfa, p.hivestackDisplayUuid, p.vistarEnabled, " +
+            "p.vistarLanguage, p.hivestackEnabled, p.generatorId, p.rottAdWidth, p.rottAdHeight, p.updatedAt) " +
+            "from Playlogs p where p.reachDeviceIfa is not null")
+    List<PlaylogRecord> findAllRecords();
+
+    // for tables that don't have updated_at yet
+    @Query("select new starproxy.model.starproxy.PlaylogRecord(p.id, p.reachDeviceIfa, p.hivestackDisplayUuid, p.vistarEnabled, " +
+            "p.vistarLanguage, p.hivestackEnabled, p.generatorId, p.rottAdWidth, p.rottAdHeight) " +
+            "from Playlogs p where p.reachDeviceIfa is not null")
+    List<PlaylogRecord> findAllRecordsWithoutUpdatedAt();
+
+    // no ifa filter here, a row that lost its ifa has to reach the store so it can be dropped
+    @Query("select new starproxy.model.starproxy.PlaylogRecord(p.id, p.reachDeviceIfa, p.hivestackDisplayUuid, p.vistarEnabled, " +
+            "p.vistarLanguage, p.hivestackEnabled, p.generatorId, p.rottAdWidth, p.rottAdHeight, p.updatedAt) " +
+            "from Playlogs p where p.updatedAt >= :since")
+    List<PlaylogRecord> findRecordsUpdatedSince(@Param("since") Instant since);
 }
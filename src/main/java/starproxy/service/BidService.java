@@ -17,32 +17,47 @@
 package starproxy.service;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import starproxy.enums.AutoBidStrategy;
+import starproxy.enums.BidOutcome;
 import starproxy.enums.BroadsignPartner;
 import starproxy.model.bidRequest.BidRequest;
+import starproxy.model.bidRequest.Impression;
+import starproxy.model.bidResponse.Bid;
 import starproxy.model.bidResponse.BidResponse;
 import starproxy.model.bidResponse.Seatbid;
+import starproxy.model.cache.ScreenRoutes;
 import starproxy.model.vistar.VistarRequest;
 import starproxy.repository.CreativesRepository;
 import starproxy.repository.PlaylogsRepository;
 import starproxy.service.BiddingPartners.HivestackService;
 import starproxy.service.BiddingPartners.VistarService;
+import starproxy.util.AutoAuction;
 import starproxy.util.CacheData;
+import starproxy.util.StarproxyJson;
+import starproxy.util.StarproxyMetrics;
 import starproxy.util.StarproxyUtils;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 @Service
 @Slf4j
 public class BidService {
 
+    private static final Object DEADLINE_PASSED = new Object();
+
     @Autowired
     CacheData cacheData;
 
@@ -64,125 +79,292 @@ public class BidService {
     @Autowired
     HivestackService hivestackService;
 
-    public Mono<String> biddingRequest(BidRequest bidRequest, BroadsignPartner partner) throws JsonProcessingException {
-        log.debug("BidRequest for " + partner + ": " + starproxyUtils.mapToJson(bidRequest));
-        CompletableFuture<String> bidResponseCompletableFuture = new CompletableFuture<>();
-        Mono<String> bodyCompletedMono = Mono.fromFuture(bidResponseCompletableFuture);
+    @Autowired
+    StarproxyMetrics starproxyMetrics;
+
+    @Value("${bid.deadline.safety-margin-ms}")
+    private Long DEADLINE_SAFETY_MARGIN_MS;
+
+    @Value("${bid.deadline.default-tmax-ms}")
+    private Long DEFAULT_TMAX_MS;
+
+    @Value("${bid.auto.strategy}")
+    private AutoBidStrategy AUTO_STRATEGY;
+
+    @Value("${bid.auto.priority}")
+    private List<BroadsignPartner> AUTO_PRIORITY;
+
+    /**
+     * @param receivedAt {@link System#nanoTime()} when the request reached us, see
+     * {@link starproxy.controller.ArrivalTimeFilter}
+     */
+    public Mono<byte[]> biddingRequest(BidRequest bidRequest, BroadsignPartner partner, long receivedAt) throws JsonProcessingException {
+        // timed on every path, the fast no-bids included
+        return partnerBidResponse(bidRequest, partner, receivedAt)
+                .doFinally(signal -> starproxyMetrics.bidRequest(partner, receivedAt));
+    }
+
+    private Mono<byte[]> partnerBidResponse(BidRequest bidRequest, BroadsignPartner partner, long receivedAt) throws JsonProcessingException {
+        if (log.isDebugEnabled()) {
+            log.debug("BidRequest for {}: {}", partner, StarproxyJson.writeBidRequest(bidRequest));
+        }
+        if (bidRequest.getImp() == null) {
+            return noBid();
+        }
+
+        Duration budget = remainingBudget(bidRequest, receivedAt);
+        if (budget.isNegative() || budget.isZero()) {
+            log.debug("No time left to bid for {}. Request ID: {} . tmax: {}", partner, bidRequest.getId(), bidRequest.getTmax());
+            deadlineExceeded(partner);
+            return noBid();
+        }
+
+        Mono<Bid> bid = withDeadline(fetchPartnerBid(bidRequest, partner), bidRequest, partner, budget)
+                .doOnNext(b -> starproxyMetrics.outcome(partner, BidOutcome.BID));
+        return respond(bidRequest, bid, partner.toString());
+    }
+
+    /**
+     * Asks every enabled partner the screen is mapped to at once, each under the request's deadline, and answers
+     * with the bid {@link AutoAuction} picks. Hivestack calls still running once the winner is decided are
+     * cancelled. Vistar calls are left to finish, past the deadline too: an ad Vistar serves and we don't play has to
+     * be given back through its expiration url, and a cancelled call would never tell us about it.
+     */
+    public Mono<byte[]> autoBiddingRequest(BidRequest bidRequest, Set<BroadsignPartner> enabledPartners, long receivedAt) throws JsonProcessingException {
+        return autoBidResponse(bidRequest, enabledPartners, receivedAt)
+                .doFinally(signal -> starproxyMetrics.autoBidRequest(receivedAt));
+    }
+
+    private Mono<byte[]> autoBidResponse(BidRequest bidRequest, Set<BroadsignPartner> enabledPartners, long receivedAt) throws JsonProcessingException {
+        if (log.isDebugEnabled()) {
+            log.debug("BidRequest for auto: {}", StarproxyJson.writeBidRequest(bidRequest));
+        }
+        if (bidRequest.getImp() == null) {
+            return noBid();
+        }
+        String reachId = bidRequest.getDevice().getUniqueScreenId();
+        ScreenRoutes screenRoutes = starproxyUtils.getScreenRoutes(reachId);
+        List<BroadsignPartner> partners = new ArrayList<>(enabledPartners.size());
+        for (BroadsignPartner partner : enabledPartners) {
+            if (screenRoutes != null && routeOf(screenRoutes, partner) != null) {
+                partners.add(partner);
+            } else {
+                // counted as the single partner endpoints count it, so both modes compare
+                starproxyMetrics.outcome(partner, BidOutcome.NO_MAPPING);
+            }
+        }
+        if (partners.isEmpty()) {
+            log.error("No partner mappings found for the Reach ifa: {}", reachId);
+            return noBid();
+        }
+
+        Duration budget = remainingBudget(bidRequest, receivedAt);
+        if (budget.isNegative() || budget.isZero()) {
+            log.debug("No time left to bid for auto. Request ID: {} . tmax: {}", bidRequest.getId(), bidRequest.getTmax());
+            partners.forEach(this::deadlineExceeded);
+            return noBid();
+        }
+
+        AutoAuction auction = new AutoAuction(AUTO_STRATEGY, AUTO_PRIORITY, partners);
+        List<Mono<AutoAuction.Result>> calls = new ArrayList<>(partners.size());
+        for (BroadsignPartner partner : partners) {
+            Mono<AutoAuction.Result> call = withDeadline(fetchPartnerBid(bidRequest, partner), bidRequest, partner, budget)
+                    .map(bid -> {
+                        AutoAuction.Result result = auction.offer(partner, bid);
+                        if (result == AutoAuction.Result.LATE) {
+                            discardLate(partner, bid, bidRequest);
+                        }
+                        return result;
+                    })
+                    .switchIfEmpty(Mono.fromCallable(() -> auction.offer(partner, null)));
+            calls.add(partner == BroadsignPartner.BROADSIGN_HIVESTACK ? call : detached(call));
+        }
+        Mono<Bid> winner = Flux.merge(calls)
+                .takeUntil(result -> result != AutoAuction.Result.PENDING)
+                .then(Mono.fromCallable(() -> settle(auction, bidRequest)))
+                .map(AutoAuction.Offer::getBid);
+        return respond(bidRequest, winner, "auto");
+    }
+
+    // keeps running when the subscriber cancels; what it emits after that is dropped
+    private static <T> Mono<T> detached(Mono<T> call) {
+        return Mono.create(sink -> call.subscribe(sink::success, sink::error, sink::success));
+    }
+
+    // a bid that came in after the auction closed, given back like any other loser
+    private void discardLate(BroadsignPartner partner, Bid bid, BidRequest bidRequest) {
+        log.debug("{} answered after the auction closed. Request ID: {}", partner, bidRequest.getId());
+        starproxyMetrics.outcome(partner, BidOutcome.OUTBID);
+        giveBack(partner, bid, bidRequest);
+    }
+
+    // tells Vistar we won't play the ad it served, so it does not count an impression
+    private void giveBack(BroadsignPartner partner, Bid bid, BidRequest bidRequest) {
+        if (bid.getExpirationUrl() != null) {
+            log.debug("Giving back the {} ad. Request ID: {}", partner, bidRequest.getId());
+            vistarService.callNotifyUrl(bid.getExpirationUrl());
+        }
+    }
+
+    // closes the auction, counts the outcome of the bids we got and tells Vistar about the ads we won't play
+    private AutoAuction.Offer settle(AutoAuction auction, BidRequest bidRequest) {
+        AutoAuction.Offer winner = auction.close();
+        if (winner == null) {
+            return null;
+        }
+        starproxyMetrics.outcome(winner.getPartner(), BidOutcome.BID);
+        for (AutoAuction.Offer loser : auction.getLosers()) {
+            log.debug("{} outbid by {}. Request ID: {}", loser.getPartner(), winner.getPartner(), bidRequest.getId());
+            starproxyMetrics.outcome(loser.getPartner(), BidOutcome.OUTBID);
+            giveBack(loser.getPartner(), loser.getBid(), bidRequest);
+        }
+        return winner;
+    }
+
+    /**
+     * Stops waiting for the partner once the budget is spent. Hivestack calls are cancelled at that point. Vistar
+     * exchanges are left to finish, bounded by the Vistar pool's response timeout: by the time we stop waiting Vistar
+     * has often served the ad already, and one that arrives after the deadline is given back through its expiration url.
+     */
+    private Mono<Bid> withDeadline(Mono<Bid> bid, BidRequest bidRequest, BroadsignPartner partner, Duration budget) {
+        if (partner == BroadsignPartner.BROADSIGN_HIVESTACK) {
+            return bid
+                    .timeout(budget, Mono.fromRunnable(() -> deadlinePassed(bidRequest, partner, budget)))
+                    .filter(b -> b.getId() != null);
+        }
+        // holds the bid once it arrives, or DEADLINE_PASSED once we stopped waiting, whichever comes first
+        AtomicReference<Object> outcome = new AtomicReference<>();
+        Mono<Bid> exchange = bid
+                .filter(b -> b.getId() != null)
+                .doOnNext(b -> {
+                    if (!outcome.compareAndSet(null, b)) {
+                        giveBack(partner, b, bidRequest);
+                    }
+                });
+        return detached(exchange)
+                .timeout(budget, Mono.defer(() -> {
+                    if (outcome.compareAndSet(null, DEADLINE_PASSED)) {
+                        deadlinePassed(bidRequest, partner, budget);
+                        return Mono.empty();
+                    }
+                    // the bid got in just before the deadline fired
+                    return Mono.just((Bid) outcome.get());
+                }));
+    }
+
+    private void deadlinePassed(BidRequest bidRequest, BroadsignPartner partner, Duration budget) {
+        log.debug("{} did not answer within {}ms. Request ID: {}", partner, budget.toMillis(), bidRequest.getId());
+        deadlineExceeded(partner);
+    }
+
+    private Mono<byte[]> respond(BidRequest bidRequest, Mono<Bid> bid, String partner) {
         BidResponse bidResponse = new BidResponse();
         bidResponse.setId(bidRequest.getId());
         Seatbid seatbid = new Seatbid();
         bidResponse.setSeatbid(Collections.singletonList(seatbid));
-        if (bidRequest.getImp() != null) {
-            if (bidRequest.getImp().get(0).getPmp() != null) {
-                if (bidRequest.getImp().get(0).getPmp().getDeals() != null) {
-                    bidResponse.setCur(bidRequest.getImp().get(0).getPmp().getDeals().get(0).getBidFloorCur());
-                    if (bidRequest.getImp().get(0).getPmp().getDeals().get(0).getWhitelistOfBidderSeats() != null) {
-                        seatbid.setSeat(bidRequest.getImp().get(0).getPmp().getDeals().get(0).getWhitelistOfBidderSeats().get(0));
-                    }
+        if (bidRequest.getImp().get(0).getPmp() != null) {
+            if (bidRequest.getImp().get(0).getPmp().getDeals() != null) {
+                bidResponse.setCur(bidRequest.getImp().get(0).getPmp().getDeals().get(0).getBidFloorCur());
+                if (bidRequest.getImp().get(0).getPmp().getDeals().get(0).getWhitelistOfBidderSeats() != null) {
+                    seatbid.setSeat(bidRequest.getImp().get(0).getPmp().getDeals().get(0).getWhitelistOfBidderSeats().get(0));
                 }
             }
+        }
+        return bid
+                .flatMap(b -> {
+                    seatbid.setBid(Collections.singletonList(b));
+                    try {
+                        return Mono.just(StarproxyJson.writeBidResponse(bidResponse));
+                    } catch (JsonProcessingException e) {
+                        log.error("While parsing bid response following error occured : {}", e.getMessage());
+                        return Mono.empty();
+                    }
+                })
+                .doOnNext(body -> {
+                    if (log.isDebugEnabled()) {
+                        log.debug("BidResponse for {}: {}", partner, new String(body, StandardCharsets.UTF_8));
+                    }
+                })
+                .switchIfEmpty(noBid());
+    }
 
-            hivestack:
-            if (partner.equals(BroadsignPartner.BROADSIGN_HIVESTACK)) {
-                if (!starproxyUtils.getReachHivestackMappingsMap().containsKey(bidRequest.getDevice().getUniqueScreenId())) {
-                    log.error("No Hivestack mappings found for the Reach ifa: " + bidRequest.getDevice().getUniqueScreenId());
-                    bidResponseCompletableFuture.complete("error");
-                    break hivestack;
-                }
-                hivestackService.fetchHivestackAd(bidRequest.getImp().get(0), bidRequest.getId(), bidRequest.getDevice().getUniqueScreenId())
-                        .doOnNext(bid -> {
-                            if (bid.getId() == null) {
-                                bidResponseCompletableFuture.complete("error");
-                            } else {
-                                seatbid.setBid(Collections.singletonList(bid));
-                                try {
-                                    bidResponseCompletableFuture.complete(starproxyUtils.mapToJson(bidResponse));
-                                } catch (JsonProcessingException e) {
-                                    log.error("While parsing bid response following error occured : " + e.getMessage());
-                                    bidResponseCompletableFuture.complete("error");
-                                }
-                            }
-                        }).subscribe();
-            }
+    private static String routeOf(ScreenRoutes screenRoutes, BroadsignPartner partner) {
+        switch (partner) {
+            case BROADSIGN_HIVESTACK:
+                return screenRoutes.getHivestackDisplayUuid();
+            case BROADSIGN_VISTAR:
+                return screenRoutes.getVistarVenueId();
+            case BROADSIGN_VISTAR_FR:
+                return screenRoutes.getVistarFrenchVenueId();
+            default:
+                return null;
+        }
+    }
 
-            vistar:
-            if (partner.equals(BroadsignPartner.BROADSIGN_VISTAR)) {
-                if (!starproxyUtils.getReachVistarMappingsMap().containsKey(bidRequest.getDevice().getUniqueScreenId())) {
-                    log.error("No Vistar mappings found for the Reach ifa: " + bidRequest.getDevice().getUniqueScreenId());
-                    bidResponseCompletableFuture.complete("error");
-                    break vistar;
-                }
-                String ifa = starproxyUtils.getReachVistarMappingsMap().get(bidRequest.getDevice().getUniqueScreenId());
-                // vistar request
-                VistarRequest vistarRequest = vistarService.fetchVistarRequestObject(false);
-                if (bidRequest.getImp().get(0).getBanner() != null) {
-                    vistarRequest.getDisplayArea().get(0).setSupportedMedia(bidRequest.getImp().get(0).getBanner().getMimeTypes());
+    private Mono<Bid> fetchPartnerBid(BidRequest bidRequest, BroadsignPartner partner) {
+        String reachId = bidRequest.getDevice().getUniqueScreenId();
+        // one snapshot read per bid, all partner routes for the screen come with it
+        ScreenRoutes screenRoutes = starproxyUtils.getScreenRoutes(reachId);
+        switch (partner) {
+            case BROADSIGN_HIVESTACK:
+                if (screenRoutes == null || screenRoutes.getHivestackDisplayUuid() == null) {
+                    log.error("No Hivestack mappings found for the Reach ifa: {}", reachId);
+                    starproxyMetrics.outcome(partner, BidOutcome.NO_MAPPING);
+                    return Mono.empty();
                 }
-                if (bidRequest.getImp().get(0).getVideo() != null) {
-                    vistarRequest.getDisplayArea().get(0).setSupportedMedia(bidRequest.getImp().get(0).getVideo().getMimeTypes());
-                }
-                vistarRequest.setLatitude(bidRequest.getDevice().getGeo().getLat());
-                vistarRequest.setLongitude(bidRequest.getDevice().getGeo().getLon());
-                vistarRequest.setVenueId(ifa);
-
-                vistarService.fetchVistarAd(bidRequest.getImp().get(0), bidRequest.getId(), vistarRequest, bidRequest.getDevice().getUniqueScreenId(), partner)
-                        .doOnNext(bid -> {
-                            if (bid.getId() == null) {
-                                bidResponseCompletableFuture.complete("error");
-                            } else {
-                                seatbid.setBid(Collections.singletonList(bid));
-                                try {
-                                    bidResponseCompletableFuture.complete(starproxyUtils.mapToJson(bidResponse));
-                                } catch (JsonProcessingException e) {
-                                    log.error("While parsing bid response following error occured : " + e.getMessage());
-                                    bidResponseCompletableFuture.complete("error");
-                                }
-                            }
-                        }).subscribe();
-            }
-            vistar_french:
-            if (partner.equals(BroadsignPartner.BROADSIGN_VISTAR_FR)) {
-                if (!starproxyUtils.getReachVistarFrenchMappingsMap().containsKey(bidRequest.getDevice().getUniqueScreenId())) {
-                    log.error("No Vistar French mappings found for the Reach ifa: " + bidRequest.getDevice().getUniqueScreenId());
-                    bidResponseCompletableFuture.complete("error");
-                    break vistar_french;
+                return hivestackService.fetchHivestackAd(bidRequest.getImp().get(0), bidRequest.getId(), reachId, screenRoutes.getHivestackDisplayUuid());
+            case BROADSIGN_VISTAR:
+                if (screenRoutes == null || screenRoutes.getVistarVenueId() == null) {
+                    log.error("No Vistar mappings found for the Reach ifa: {}", reachId);
+                    starproxyMetrics.outcome(partner, BidOutcome.NO_MAPPING);
+                    return Mono.empty();
                 }
-                String ifa = starproxyUtils.getReachVistarFrenchMappingsMap().get(bidRequest.getDevice().getUniqueScreenId());
-                // vistar request
-                VistarRequest vistarRequest = vistarService.fetchVistarRequestObject(true);
-                if (bidRequest.getImp().get(0).getBanner() != null) {
-                    vistarRequest.getDisplayArea().get(0).setSupportedMedia(bidRequest.getImp().get(0).getBanner().getMimeTypes());
+                return fetchVistarBid(bidRequest, partner, screenRoutes.getVistarVenueId());
+            case BROADSIGN_VISTAR_FR:
+                if (screenRoutes == null || screenRoutes.getVistarFrenchVenueId() == null) {
+                    log.error("No Vistar French mappings found for the Reach ifa: {}", reachId);
+                    starproxyMetrics.outcome(partner, BidOutcome.NO_MAPPING);
+                    return Mono.empty();
                 }
-                if (bidRequest.getImp().get(0).getVideo() != null) {
-                    vistarRequest.getDisplayArea().get(0).setSupportedMedia(bidRequest.getImp().get(0).getVideo().getMimeTypes());
-                }
-                vistarRequest.setLatitude(bidRequest.getDevice().getGeo().getLat());
-                vistarRequest.setLongitude(bidRequest.getDevice().getGeo().getLon());
-                vistarRequest.setVenueId(ifa);
-
-                vistarService.fetchVistarAd(bidRequest.getImp().get(0), bidRequest.getId(), vistarRequest, bidRequest.getDevice().getUniqueScreenId(), partner)
-                        .doOnNext(bid -> {
-                            if (bid.getId() == null) {
-                                bidResponseCompletableFuture.complete("error");
-                            } else {
-                                seatbid.setBid(Collections.singletonList(bid));
-                                try {
-                                    bidResponseCompletableFuture.complete(starproxyUtils.mapToJson(bidResponse));
-                                } catch (JsonProcessingException e) {
-                                    log.error("While parsing bid response following error occured : " + e.getMessage());
-                                    bidResponseCompletableFuture.complete("error");
-                                }
-                            }
-                        }).subscribe();
-            }
+                return fetchVistarBid(bidRequest, partner, screenRoutes.getVistarFrenchVenueId());
+            default:
+                return Mono.empty();
         }
+    }
 
-        return bodyCompletedMono.doOnNext(s -> {
-            if (s.equals("error")) {
-                throw new ResponseStatusException(HttpStatus.NO_CONTENT);
-            }
-            log.debug("BidResponse for " + partner + ": " + s);
-        });
+    private Mono<Bid> fetchVistarBid(BidRequest bidRequest, BroadsignPartner partner, String venueId) {
+        Impression impression = bidRequest.getImp().get(0);
+        // vistar request
+        VistarRequest vistarRequest = vistarService.fetchVistarRequestObject(partner.equals(BroadsignPartner.BROADSIGN_VISTAR_FR));
+        if (impression.getBanner() != null) {
+            vistarRequest.getDisplayArea().get(0).setSupportedMedia(impression.getBanner().getMimeTypes());
+        }
+        if (impression.getVideo() != null) {
+            vistarRequest.getDisplayArea().get(0).setSupportedMedia(impression.getVideo().getMimeTypes());
+        }
+        vistarRequest.setLatitude(bidRequest.getDevice().getGeo().getLat());
+        vistarRequest.setLongitude(bidRequest.getDevice().getGeo().getLon());
+        vistarRequest.setVenueId(venueId);
+
+        return vistarService.fetchVistarAd(impression, bidRequest.getId(), vistarRequest, bidRequest.getDevice().getUniqueScreenId(), partner);
+    }
+
+    /**
+     * The time we can still give a partner: tmax minus the safety margin kept for writing our response,
+     * minus what has already been spent on this request since it reached our filters, body binding included.
+     */
+    private Duration remainingBudget(BidRequest bidRequest, long receivedAt) {
+        long tmax = bidRequest.getTmax() != null ? bidRequest.getTmax() : DEFAULT_TMAX_MS;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - receivedAt);
+        return Duration.ofMillis(tmax - DEADLINE_SAFETY_MARGIN_MS - elapsed);
+    }
+
+    private void deadlineExceeded(BroadsignPartner partner) {
+        starproxyMetrics.outcome(partner, BidOutcome.TIMEOUT);
+    }
+
+    private static <T> Mono<T> noBid() {
+        return Mono.error(() -> new ResponseStatusException(HttpStatus.NO_CONTENT));
     }
 
 }
\ No newline at end of file
@@ -16,49 +16,46 @@
 
 package starproxy.service.BiddingPartners;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
+import starproxy.enums.BidOutcome;
 import starproxy.enums.BroadsignPartner;
+import starproxy.enums.Upstream;
 import starproxy.model.bidRequest.Impression;
 import starproxy.model.bidResponse.Bid;
 import starproxy.model.bidResponse.Ext;
-import starproxy.model.cache.VastDocument;
-import starproxy.model.starproxy.Playlogs;
+import starproxy.model.starproxy.PlaylogRecord;
 import starproxy.model.reach.CreativeRequest;
+import starproxy.model.vistar.Advertisement;
 import starproxy.model.vistar.DisplayArea;
 import starproxy.model.vistar.VistarRequest;
+import starproxy.model.vistar.VistarResponse;
 import starproxy.repository.CreativesRepository;
-import starproxy.repository.PlaylogsRepository;
 import starproxy.service.CreativeService;
 import starproxy.service.OauthService;
 import starproxy.util.CacheData;
+import starproxy.util.LogSampler;
+import starproxy.util.NotificationUrls;
+import starproxy.util.StarproxyJson;
+import starproxy.util.StarproxyMetrics;
 import starproxy.util.StarproxyUtils;
 import starproxy.util.UUIDType5;
+import starproxy.util.VastDocuments;
+import starproxy.util.VastRouting;
+import starproxy.util.WebClientRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
-import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.BodyInserters;
-import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.util.UriComponents;
-import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Mono;
 
-import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
-import java.nio.charset.StandardCharsets;
-import java.time.Duration;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -67,10 +64,7 @@ import java.util.stream.Stream;
 public class VistarService {
 
     @Autowired
-    PlaylogsRepository playlogsRepository;
-
-    @Autowired
-    private WebClient.Builder webClientBuilder;
+    private WebClientRegistry webClientRegistry;
 
     @Autowired
     CacheData cacheData;
@@ -114,15 +108,12 @@ public class VistarService {
     @Value("${vastserver.cached-document-path}")
     private String CACHED_DOCUMENT_PATH;
 
-    @Value("${reach.nurl}")
-    private String NURL;
-
-    @Value("${reach.lurl}")
-    private String LURL;
-
     @Autowired
     StarproxyUtils starproxyUtils;
 
+    @Autowired
+    NotificationUrls notificationUrls;
+
     @Autowired
     CreativeService creativeService;
 
@@ -132,6 +123,15 @@ public class VistarService {
     @Autowired
     CreativesRepository creativesRepository;
 
+    @Autowired
+    LogSampler logSampler;
+
+    @Autowired
+    VastRouting vastRouting;
+
+    @Autowired
+    StarproxyMetrics starproxyMetrics;
+
     public VistarRequest fetchVistarRequestObject(Boolean frenchEnabled) {
 
         VistarRequest vistarRequest = new VistarRequest();
@@ -153,121 +153,79 @@ public class VistarService {
         return vistarRequest;
     }
 
-    public void vistarCreative(Playlogs playlog) {
-        VistarRequest vistarRequest = new VistarRequest();
-        BroadsignPartner partner = BroadsignPartner.BROADSIGN_VISTAR;
-        vistarRequest = fetchVistarRequestObject(false);
-        String creativeCachingendpoint = VISTAR_STAGING_BASE_URL + VISTAR_CREATIVE_CACHING_PATH;
-        if (playlog.getVistarLanguage().equals("FR")) {
-            partner = BroadsignPartner.BROADSIGN_VISTAR_FR;
-            vistarRequest = fetchVistarRequestObject(true);
-            creativeCachingendpoint = VISTAR_PRODUCTION_BASE_URL + VISTAR_CREATIVE_CACHING_PATH;
+    /**
+     * @return the Vistar panel id of the screen, or an empty string when the generator id does not carry one
+     */
+    public static String panelId(PlaylogRecord playlog) {
+        if (playlog.getGeneratorId() == null || !playlog.getGeneratorId().contains(":")) {
+            return "";
         }
+        return playlog.getGeneratorId().substring(playlog.getGeneratorId().lastIndexOf(":") + 1).strip();
+    }
 
-        String panelId = "";
-        if (playlog.getGeneratorId() != null && playlog.getGeneratorId().contains(":")) {
-            panelId = playlog.getGeneratorId().substring(playlog.getGeneratorId().lastIndexOf(":") + 1).strip();
-        }
-        if (panelId.isEmpty() || panelId == null) {
-            log.debug("PanelId is empty or null for playlog" + playlog.getId());
-            return;
-        }
+    public static BroadsignPartner partner(PlaylogRecord playlog) {
+        return "FR".equals(playlog.getVistarLanguage()) ? BroadsignPartner.BROADSIGN_VISTAR_FR : BroadsignPartner.BROADSIGN_VISTAR;
+    }
+
+    /**
+     * Assets Vistar expects to play on the screen, from the creative caching endpoint. Errors are left to the
+     * caller so it can decide on retries.
+     */
+    public Mono<List<CreativeRequest>> fetchUpcomingCreatives(PlaylogRecord playlog) {
+        BroadsignPartner partner = partner(playlog);
+        boolean french = partner.equals(BroadsignPartner.BROADSIGN_VISTAR_FR);
+        VistarRequest vistarRequest = fetchVistarRequestObject(french);
+        String creativeCachingendpoint = (french ? VISTAR_PRODUCTION_BASE_URL : VISTAR_STAGING_BASE_URL) + VISTAR_CREATIVE_CACHING_PATH;
+        String panelId = panelId(playlog);
         vistarRequest.setVenueId(panelId);
         vistarRequest.getDisplayArea().get(0).setHeight(playlog.getRottAdHeight());
         vistarRequest.getDisplayArea().get(0).setWidth(playlog.getRottAdWidth());
-        String finalPanelId = panelId;
-        BroadsignPartner finalPartner = partner;
-        webClientBuilder.build()
+        return webClientRegistry.get(Upstream.VISTAR)
                 .post()
                 .uri(creativeCachingendpoint)
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .body(BodyInserters.fromValue(vistarRequest))
+                .body(StarproxyJson.vistarRequestBody(vistarRequest))
                 .accept(MediaType.APPLICATION_JSON)
                 .retrieve()
-                .onStatus(httpStatus -> httpStatus.is4xxClientError() || httpStatus.is5xxServerError(), clientResponse -> {
-                    clientResponse.bodyToMono(String.class).subscribe(s -> {
-                        log.error(" Error occured while requesting Vistar " + playlog.getVistarLanguage() + " Creative Caching endpoint. Venue ID: " + finalPanelId + " . Error: " + s);
-                    });
-                    return Mono.empty();
-                })
                 .bodyToMono(String.class)
-                .doOnSuccess(s -> {
-                    JSONObject jsonObject = new JSONObject(s);
-                    if (!jsonObject.isEmpty()) {
-                        JSONArray assetArray = (JSONArray) jsonObject.get("asset");
-                        List<CreativeRequest> upcomingCreativesList = creativeService.jsonArrayToCreativeRequestObject(assetArray, finalPanelId, finalPartner);
-                        upcomingCreativesList.stream().forEach(creative -> {
-                            try {
-                                if (creative.getOriginalUrl() != null || !creative.getOriginalUrl().isEmpty()) {
-                                    if (!cacheData.creativeUrlExists(creative.getOriginalUrl())) {
-                                        log.debug("[display: " + finalPanelId + "] adding VISTAR " + playlog.getVistarLanguage() + " creative to reach: " + starproxyUtils.mapToJson(creative));
-                                        creativeService.createReachCreative(creative, finalPartner, finalPanelId);
-                                    } else {
-                                        log.info("Vistar " + playlog.getVistarLanguage() + " Creative already created and stored in database. Url: " + creative.getOriginalUrl());
-                                    }
-                                }
-                            } catch (JsonProcessingException e) {
-                                log.error("While parsing Vistar " + playlog.getVistarLanguage() + " creative following error occured : " + e.getMessage());
-                            }
-                        });
-                    } else {
-                        log.info("No assets available for vistar " + playlog.getVistarLanguage() + " with PanelId: " + finalPanelId);
+                .map(s -> {
+                    JSONArray assetArray = new JSONObject(s).optJSONArray("asset");
+                    if (assetArray == null || assetArray.isEmpty()) {
+                        log.debug("No assets available for vistar {} with PanelId: {}", playlog.getVistarLanguage(), panelId);
+                        return Collections.<CreativeRequest>emptyList();
                     }
-                }).subscribe();
-    }
-
-
-    public void fetchUpcomingVistarCreative() {
-        log.debug("Entered fetchUpcomingVistarCreative().");
-
-        // adding token to cache
-        oauthService.getBearerToken(BroadsignPartner.BROADSIGN_VISTAR);
-        oauthService.getBearerToken(BroadsignPartner.BROADSIGN_VISTAR_FR);
-        List<Playlogs> playlogsList = playlogsRepository.findAllByReachDeviceIfaNotNull();
-        List<Playlogs> filteredPlaylogs = new ArrayList<>();
-        if (!playlogsList.equals(null)) {
-            playlogsList.stream().forEach(playlog -> {
-                if (playlog.getGeneratorId() != null && playlog.getVistarEnabled().equals("Y")) {
-                    String panelId = playlog.getGeneratorId().substring(playlog.getGeneratorId().lastIndexOf(":") + 1).strip();
-                    if (!panelId.isBlank()) {
-                        filteredPlaylogs.add(playlog);
-                    }
-                }
-                //filteredPlaylogs.add(playlog);
-            });
-        }
-        filteredPlaylogs.forEach(this::vistarCreative);
-        log.debug("Exiting fetchUpcomingVistarCreative().");
+                    return creativeService.jsonArrayToCreativeRequestObject(assetArray, panelId, partner);
+                })
+                .defaultIfEmpty(Collections.emptyList());
     }
 
     public void callNotifyUrl(String url) {
-        log.info("Notiyfing vistar for bid loss. Expiration url: " + url);
-        webClientBuilder.build()
+        webClientRegistry.get(Upstream.VISTAR)
                 .get()
                 .uri(url)
-                .retrieve()
-                .onStatus(httpStatus -> httpStatus.is5xxServerError() || httpStatus.is4xxClientError(), clientResponse -> {
-                    clientResponse.bodyToMono(String.class).subscribe(s -> {
-                        log.error("Error occured while notifying vistar. Error: " + s);
-                    });
-                    return Mono.empty();
-                })
-                .onStatus(HttpStatus::is2xxSuccessful, clientResponse -> {
-                    log.info("Successfully notified vistar for bid loss.");
-                    return Mono.empty();
+                .exchange()
+                .flatMap(clientResponse -> {
+                    if (clientResponse.statusCode().is2xxSuccessful()) {
+                        if (logSampler.sample("vistar_expire")) {
+                            log.info("event=vistar_expire status={} url={}", clientResponse.rawStatusCode(), url);
+                        }
+                        return clientResponse.releaseBody();
+                    }
+                    return clientResponse.bodyToMono(String.class)
+                            .defaultIfEmpty("")
+                            .doOnNext(s -> log.error("Error occured while notifying vistar. Expiration url: {} . Status: {} . Error: {}",
+                                    url, clientResponse.rawStatusCode(), s))
+                            .then();
                 })
-                .bodyToMono(String.class)
-                .subscribe();
+                .subscribe(null, e -> log.error("Error occured while notifying vistar. Expiration url: {} . Error: {}", url, e.getMessage()));
     }
 
-    public Mono<Bid> fetchVistarAd(Impression impression, String requestId, VistarRequest vistarRequest, String reachId, BroadsignPartner partner) throws JsonProcessingException {
+    public Mono<Bid> fetchVistarAd(Impression impression, String requestId, VistarRequest vistarRequest, String reachId, BroadsignPartner partner) {
         String vistarLanguage = "EN";
         if (partner.equals(BroadsignPartner.BROADSIGN_VISTAR_FR)) {
             vistarLanguage = "FR";
         }
-        log.debug("Fetching Vistar " + vistarLanguage + " Ad for impression: " + impression.getId());
-        CompletableFuture<Bid> bidResponseCompletableFuture = new CompletableFuture<>();
-        Mono<Bid> bodyCompletedMono = Mono.fromFuture(bidResponseCompletableFuture);
+        log.debug("Fetching Vistar {} Ad for impression: {}", vistarLanguage, impression.getId());
 
         vistarRequest.setDisplayTime(impression.getExt().getDisplaytime());
         if (impression.getId().equals("2") && impression.getVideo() != null) {
@@ -283,173 +241,125 @@ public class VistarService {
         }
 
         String finalVistarLanguage = vistarLanguage;
-        WebClient.builder().build()
+        return webClientRegistry.get(Upstream.VISTAR)
                 .post()
                 .uri(VISTAR_BASE_URL + VISTAR_AD_SERVING_PATH)
                 .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .body(Mono.just(vistarRequest), VistarRequest.class)
+                .body(StarproxyJson.vistarRequestBody(vistarRequest))
                 .accept(MediaType.APPLICATION_JSON)
                 .retrieve()
-                .onStatus(httpStatus -> httpStatus.is5xxServerError() || httpStatus.is4xxClientError(), clientResponse -> {
-                    clientResponse.bodyToMono(String.class).subscribe(s -> {
-                        log.error("Error occurred while fetching Vistar " + finalVistarLanguage + " Ad. Request ID: " + requestId
-                                + " . Bid ID: " + impression.getId()
-                                + " . Venue ID: " + vistarRequest.getVenueId() + " . Error: " + s);
-                        bidResponseCompletableFuture.complete(new Bid());
-                    });
+                .bodyToMono(VistarResponse.class)
+                .transform(starproxyMetrics.timePartnerCall(partner))
+                .onErrorResume(WebClientResponseException.class, e -> {
+                    log.error("Error occurred while fetching Vistar {} Ad. Request ID: {} . Bid ID: {} . Venue ID: {} . Error: {}", finalVistarLanguage, requestId, impression.getId(), vistarRequest.getVenueId(), e.getResponseBodyAsString());
+                    starproxyMetrics.outcome(partner, BidOutcome.UPSTREAM_ERROR);
                     return Mono.empty();
                 })
-                .onStatus(HttpStatus::is2xxSuccessful, clientResponse -> {
-                    clientResponse.bodyToMono(String.class).subscribe(s -> {
-                        UriComponents uriComponents = UriComponentsBuilder
-                                .fromUriString(VISTAR_BASE_URL + VISTAR_AD_SERVING_PATH).build();
-                        UUID uuid = UUID.randomUUID();
-                        Bid bid = new Bid();
-                        Ext ext = new Ext();
-                        bid.setUuid(uuid.toString());
-                        bid.setPrice(BID_PRICE);
-                        if (impression.getPmp() != null) {
-                            if (impression.getPmp().getDeals() != null) {
-                                bid.setDealid(impression.getPmp().getDeals().get(0).getId());
-                            }
-                        }
-
-                        JSONObject jsonObject = new JSONObject(s);
-                        if (!jsonObject.isEmpty()) {
-                            try {
-                                JSONArray advertisementArray = (JSONArray) jsonObject.get("advertisement");
-                                String popUrl = advertisementArray.getJSONObject(0).getString("proof_of_play_url");
-                                String assetUrl = advertisementArray.getJSONObject(0).getString("asset_url");
-                                String mediaType = advertisementArray.getJSONObject(0).getString("mime_type");
-                                String advertisementId = advertisementArray.getJSONObject(0).getString("id");
-                                String advertiser = advertisementArray.getJSONObject(0).getString("advertiser");
-                                String expirationUrl = advertisementArray.getJSONObject(0).getString("expiration_url");
-                                Integer width = advertisementArray.getJSONObject(0).getInt("width");
-                                Integer height = advertisementArray.getJSONObject(0).getInt("height");
-                                Long lengthInMilliseconds = advertisementArray.getJSONObject(0).getLong("length_in_milliseconds");
-                                Duration timeLeft = Duration.ofMillis(lengthInMilliseconds);
-                                String hhmmss = String.format("%02d:%02d:%02d",
-                                        timeLeft.toHours(), timeLeft.toMinutesPart(), timeLeft.toSecondsPart());
-                                String vastTemp = String.format(VAST_DOCUMENT_TEMPLATE, popUrl, hhmmss, width, height, mediaType, assetUrl);
-                                bid.setId(advertisementId);
-                                bid.setAdid(UUIDType5.fromUrlWithStarProxyNamespace(assetUrl));
-                                bid.setNurl(VASTSERVER_BASE_URL + CONTEXT_PATH + URLDecoder.decode(NURL, StandardCharsets.UTF_8.toString()) + "&partner=Vistar_" + finalVistarLanguage + "&device=" + reachId);
-                                bid.setLurl(VASTSERVER_BASE_URL + CONTEXT_PATH + URLDecoder.decode(LURL, StandardCharsets.UTF_8.toString())
-                                        + "&lossurl=" + URLEncoder.encode(expirationUrl, StandardCharsets.UTF_8) + "&partner=Vistar_" + finalVistarLanguage + "&device=" + reachId);
-                                switch (mediaType) {
-                                    case "image/jpeg":
-                                    case "image/png":
-                                        bid.setIurl(popUrl);
-                                        bid.setImpid("1");
-                                        log.debug("Vistar " + finalVistarLanguage + " Image Impression fetched: " + popUrl);
-                                        break;
-                                    case "video/mpeg":
-                                    case "video/mp4":
-                                        bid.setIurl(null); // should be null for video assets
-                                        ext.setVastUrl(VASTSERVER_BASE_URL + CONTEXT_PATH + CACHED_DOCUMENT_PATH + vistarRequest.getVenueId() + "/" + impression.getId());
-                                        bid.setImpid("2");
-                                        bid.setExt(ext);
-                                        log.debug("Vistar " + finalVistarLanguage + " Video Impression fetched: " + popUrl);
-                                        break;
-                                    default:
-                                        log.error("Vistar " + finalVistarLanguage + " unknown mime type in bid request (" + mediaType + "), returning 204");
-                                        bidResponseCompletableFuture.complete(new Bid());
-                                }
-
-                                if (cacheData.creativeUrlExists(assetUrl)) {
-                                    log.debug("Adding Vast " + finalVistarLanguage + " document to cache for ReachId: " + vistarRequest.getVenueId() + " and Impression Id: " + impression.getId());
-                                    VastDocument vastDocument = new VastDocument();
-                                    vastDocument.setId(vistarRequest.getVenueId() + impression.getId());
-                                    vastDocument.setVastDocument(vastTemp);
-                                    cacheData.updateVastDocument(vastDocument);
-                                    bidResponseCompletableFuture.complete(bid);
-                                } else {
-                                    log.error("No creative url found in database for Vistar " + finalVistarLanguage + ". Request ID: " + requestId);
-                                    JSONArray jsonArrayVistar = new JSONArray();
-                                    JSONObject jsonObjectVistar = new JSONObject();
-                                    jsonObjectVistar.put("mime_type", mediaType);
-                                    jsonObjectVistar.put("asset_url", assetUrl);
-                                    jsonObjectVistar.put("creative_name", advertiser);
-                                    jsonArrayVistar.put(jsonObjectVistar);
-                                    List<CreativeRequest> vistarAssetList = creativeService.jsonArrayToCreativeRequestObject(jsonArrayVistar, requestId, BroadsignPartner.BROADSIGN_VISTAR);
-
-                                    vistarAssetList.stream().forEach(vistarAsset -> {
-                                        if (vistarAsset.getOriginalUrl() != null) {
-                                            creativeService.createReachCreative(vistarAsset, partner, requestId)
-                                                    .doOnNext(creativeCreated -> {
-                                                        if (creativeCreated) {
-                                                            bidResponseCompletableFuture.complete(bid);
-                                                        } else {
-                                                            bidResponseCompletableFuture.complete(new Bid());
-                                                        }
-                                                    })
-                                                    .subscribe();
-                                        } else {
-                                            log.error("Creative originalUrl is null for vistar " + finalVistarLanguage + ". ReachID: " + reachId);
-                                            bidResponseCompletableFuture.complete(new Bid());
-                                        }
-                                    });
-                                }
-
-                            } catch (UnsupportedEncodingException e) {
-                                log.error("Error occurred in Vistar " + finalVistarLanguage + " Request ID: " + requestId + " . Bid ID: " + impression.getId()
-                                        + " . Venue ID: " + vistarRequest.getVenueId() + " . Error: " + e.getMessage());
-                                bidResponseCompletableFuture.complete(new Bid());
-                            } catch (URISyntaxException e) {
-                                //log.error("unable to calculate adid guid from asset url [" + assetUrl + "]: " + e.getMessage(), e);
-                                log.error("unable to calculate adid guid from asset url for Vistar " + finalVistarLanguage + " Request ID: " + requestId + " . Bid ID: " + impression.getId()
-                                        + " . Venue ID: " + vistarRequest.getVenueId() + " . Error: " + e.getMessage());
-                                bidResponseCompletableFuture.complete(new Bid());
-                            } catch (NullPointerException e) {
-                                log.error("Error occurred in Vistar " + finalVistarLanguage + " Request ID: " + requestId + " . Bid ID: " + impression.getId()
-                                        + " . Venue ID: " + vistarRequest.getVenueId() + " . Error: " + e.getMessage());
-                                bidResponseCompletableFuture.complete(new Bid());
-                            }
-                        } else {
-                            log.info("BidResponse : No Vistar " + finalVistarLanguage + " Ad to be served. Request ID: " + requestId + " . Bid ID: " + impression.getId()
-                                    + " . Venue ID: " + vistarRequest.getVenueId());
-                            bidResponseCompletableFuture.complete(new Bid());
-                        }
-                    });
-                    return Mono.empty();
+                .flatMap(vistarResponse -> {
+                    try {
+                        return vistarBid(vistarResponse, impression, requestId, vistarRequest, reachId, partner, finalVistarLanguage);
+                    } catch (NullPointerException e) {
+                        log.error("Error occurred in Vistar {} Request ID: {} . Bid ID: {} . Venue ID: {} . Error: {}", finalVistarLanguage, requestId, impression.getId(), vistarRequest.getVenueId(), e.getMessage());
+                        starproxyMetrics.outcome(partner, BidOutcome.UPSTREAM_ERROR);
+                        return Mono.empty();
+                    } catch (URISyntaxException e) {
+                        log.error("unable to calculate adid guid from asset url for Vistar {} Request ID: {} . Bid ID: {} . Venue ID: {} . Error: {}", finalVistarLanguage, requestId, impression.getId(), vistarRequest.getVenueId(), e.getMessage());
+                        starproxyMetrics.outcome(partner, BidOutcome.UPSTREAM_ERROR);
+                        return Mono.empty();
+                    }
                 })
-                .bodyToMono(String.class)
-                .subscribe();
-
-        return bodyCompletedMono;
+                .onErrorResume(e -> {
+                    log.error("Error occurred in Vistar {} Request ID: {} . Bid ID: {} . Venue ID: {} . Exception type: {} . Error: {}", finalVistarLanguage, requestId, impression.getId(), vistarRequest.getVenueId(), e.getClass().getName(), e.getMessage());
+                    starproxyMetrics.outcome(partner, BidOutcome.UPSTREAM_ERROR);
+                    return Mono.empty();
+                });
     }
 
-    public String VAST_DOCUMENT_TEMPLATE = "<?xml version=\"1.0\"?>\n" +
-            "<VAST version=\"2.0\">\n" +
-            "    <Ad id=\"1\" sequence=\"1\">\n" +
-            "        <InLine>\n" +
-            "            <Impression>\n" +
-            "                <![CDATA[\n" +
-            "                    %s\n" +
-            "                ]]>\n" +
-            "            </Impression>\n" +
-            "            <Creatives>\n" +
-            "                <Creative>\n" +
-            "                    <Linear>\n" +
-            "                        <Duration>%s</Duration>\n" +
-            "                        <TrackingEvents>\n" +
-            "\n" +
-            "                        </TrackingEvents>\n" +
-            "                        <MediaFiles>\n" +
-            "                            <MediaFile width=\"%d\" height=\"%d\" type=\"%s\" delivery=\"progressive\">\n" +
-            "                                <![CDATA[\n" +
-            "                                    %s\n" +
-            "                                ]]>\n" +
-            "                            </MediaFile>\n" +
-            "\n" +
-            "                        </MediaFiles>\n" +
-            "                    </Linear>\n" +
-            "                </Creative>\n" +
-            "            </Creatives>\n" +
-            "        </InLine>\n" +
-            "    </Ad>\n" +
-            "\n" +
-            "</VAST>";
-
-
-}
\ No newline at end of file
+    private Mono<Bid> vistarBid(VistarResponse vistarResponse, Impression impression, String requestId, VistarRequest vistarRequest, String reachId,
+                                BroadsignPartner partner, String vistarLanguage) throws URISyntaxException {
+        UUID uuid = UUID.randomUUID();
+        Bid bid = new Bid();
+        Ext ext = new Ext();
+        bid.setUuid(uuid.toString());
+        bid.setPrice(BID_PRICE);
+        if (impression.getPmp() != null) {
+            if (impression.getPmp().getDeals() != null) {
+                bid.setDealid(impression.getPmp().getDeals().get(0).getId());
+            }
+        }
+
+        List<Advertisement> advertisements = vistarResponse.getAdvertisement();
+        if (advertisements == null || advertisements.isEmpty()) {
+            if (logSampler.sample("no_fill")) {
+                log.info("event=no_fill partner=Vistar_{} reason=no_ad request={} imp={} venue={}", vistarLanguage, requestId, impression.getId(), vistarRequest.getVenueId());
+            }
+            starproxyMetrics.outcome(partner, BidOutcome.NOTHING_SCHEDULED);
+            return Mono.empty();
+        }
+
+        Advertisement advertisement = advertisements.get(0);
+        String popUrl = advertisement.getProofOfPlayUrl();
+        String assetUrl = advertisement.getAssetUrl();
+        String mediaType = advertisement.getMimeType();
+        String advertisementId = advertisement.getId();
+        String advertiser = advertisement.getAdvertiser();
+        String expirationUrl = advertisement.getExpirationUrl();
+        Integer width = advertisement.getWidth();
+        Integer height = advertisement.getHeight();
+        long lengthInMilliseconds = advertisement.getLengthInMilliseconds().longValue();
+        // only the variables are kept, the document is rendered from the template when the player asks for it
+        byte[] vastDocument = VastDocuments.vistar(popUrl, lengthInMilliseconds, width, height, mediaType, assetUrl);
+        bid.setId(advertisementId);
+        bid.setAdid(UUIDType5.fromUrlWithStarProxyNamespace(assetUrl));
+        bid.setNurl(notificationUrls.win(partner, reachId));
+        bid.setLurl(notificationUrls.loss(partner, reachId, expirationUrl));
+        bid.setExpirationUrl(expirationUrl);
+        switch (mediaType) {
+            case "image/jpeg":
+            case "image/png":
+                bid.setIurl(popUrl);
+                bid.setImpid("1");
+                log.debug("Vistar {} Image Impression fetched: {}", vistarLanguage, popUrl);
+                break;
+            case "video/mpeg":
+            case "video/mp4":
+                bid.setIurl(null); // should be null for video assets
+                ext.setVastUrl(VASTSERVER_BASE_URL + CONTEXT_PATH + CACHED_DOCUMENT_PATH + vistarRequest.getVenueId() + "/" + impression.getId()
+                        + vastRouting.inlineQuery(vistarRequest.getVenueId(), impression.getId(), vastDocument));
+                bid.setImpid("2");
+                bid.setExt(ext);
+                log.debug("Vistar {} Video Impression fetched: {}", vistarLanguage, popUrl);
+                break;
+            default:
+                log.error("Vistar {} unknown mime type in bid request ({}), returning 204", vistarLanguage, mediaType);
+                starproxyMetrics.outcome(partner, BidOutcome.UNKNOWN_MIME);
+                return Mono.empty();
+        }
+
+        if (cacheData.creativeUrlExists(assetUrl)) {
+            log.debug("Adding Vast {} document to cache for ReachId: {} and Impression Id: {}", vistarLanguage, vistarRequest.getVenueId(), impression.getId());
+            if (vastRouting.isEnabled()) {
+                // the vast_url carries the document, any replica renders it from there
+                return Mono.just(bid);
+            }
+            if (!cacheData.putVastDocument(vistarRequest.getVenueId() + impression.getId(), vastDocument)) {
+                log.error("Vast {} document too large to cache for ReachId: {}", vistarLanguage, vistarRequest.getVenueId());
+                starproxyMetrics.outcome(partner, BidOutcome.NOT_SERVABLE);
+                return Mono.empty();
+            }
+            return Mono.just(bid);
+        }
+
+        log.error("No creative url found in database for Vistar {}. Request ID: {}", vistarLanguage, requestId);
+        CreativeRequest vistarAsset = creativeService.toCreativeRequest(assetUrl, mediaType, advertiser, requestId, BroadsignPartner.BROADSIGN_VISTAR);
+        if (vistarAsset.getOriginalUrl() == null) {
+            log.error("Creative originalUrl is null for vistar {}. ReachID: {}", vistarLanguage, reachId);
+            starproxyMetrics.outcome(partner, BidOutcome.NOT_SERVABLE);
+            return Mono.empty();
+        }
+        return creativeService.createReachCreative(vistarAsset, partner, requestId)
+                .filter(creativeCreated -> creativeCreated)
+                .map(creativeCreated -> bid)
+                .switchIfEmpty(Mono.fromRunnable(() -> starproxyMetrics.outcome(partner, BidOutcome.NOT_SERVABLE)));
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+import starproxy.enums.BroadsignPartner;
+import starproxy.enums.Upstream;
+import starproxy.model.reach.CreativeRequest;
+import starproxy.model.starproxy.PlaylogRecord;
+import starproxy.model.starproxy.PrefetchReport;
+import starproxy.service.BiddingPartners.HivestackService;
+import starproxy.service.BiddingPartners.VistarService;
+import starproxy.util.CacheData;
+import starproxy.util.PlaylogsStore;
+import starproxy.util.TokenBucket;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Pre-registers the creatives partners are about to play with Reach, so bids on them can be answered right away.
+ * Screens are fetched with bounded concurrency and every upstream call goes through a per upstream token bucket;
+ * partner fetches are retried with jittered backoff. Screens sharing a display or panel are fetched once.
+ * <p>
+ * New creatives are collected into batches (full, or after a short window) and each batch is posted to Reach
+ * concurrently, with a few batches in flight at once. Reach takes one creative per call, so a batch is a unit of
+ * scheduling and accounting rather than a single request.
+ */
+@Service
+@Slf4j
+public class CreativePrefetchService {
+
+    @Autowired
+    PlaylogsStore playlogsStore;
+
+    @Autowired
+    HivestackService hivestackService;
+
+    @Autowired
+    VistarService vistarService;
+
+    @Autowired
+    CreativeService creativeService;
+
+    @Autowired
+    CacheData cacheData;
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${prefetch.concurrency}")
+    private Integer PREFETCH_CONCURRENCY;
+
+    @Value("${prefetch.registration-concurrency}")
+    private Integer REGISTRATION_CONCURRENCY;
+
+    @Value("${prefetch.registration-batch.size}")
+    private Integer BATCH_SIZE;
+
+    @Value("${prefetch.registration-batch.window-ms}")
+    private Long BATCH_WINDOW_MS;
+
+    @Value("${prefetch.registration-batch.concurrency}")
+    private Integer BATCH_CONCURRENCY;
+
+    @Value("${prefetch.retry.max-attempts}")
+    private Integer RETRY_MAX_ATTEMPTS;
+
+    @Value("${prefetch.retry.min-backoff-ms}")
+    private Long RETRY_MIN_BACKOFF_MS;
+
+    @Value("${prefetch.retry.jitter}")
+    private Double RETRY_JITTER;
+
+    @Value("${prefetch.run-timeout-ms}")
+    private Long RUN_TIMEOUT_MS;
+
+    private final Map<Upstream, TokenBucket> rateLimits = new EnumMap<>(Upstream.class);
+
+    @PostConstruct
+    public void init() {
+        for (Upstream upstream : Upstream.values()) {
+            rateLimits.put(upstream, new TokenBucket(
+                    property(upstream, "permits-per-second", Double.class),
+                    property(upstream, "burst", Integer.class)));
+        }
+    }
+
+    public PrefetchReport prefetchHivestackCreatives() {
+        PrefetchReport report = new PrefetchReport("Hivestack");
+
+        // many screens can share one hivestack display, fetch each once
+        Set<String> displays = new LinkedHashSet<>();
+        playlogsStore.getPlaylogs().forEach(playlog -> {
+            String hivestackDisplayUuid = playlog.getHivestackDisplayUuid();
+            if (hivestackDisplayUuid == null || hivestackDisplayUuid.isEmpty()) {
+                log.debug("hivestack uuid for Reach playlog {} was null, skipping", playlog.getReachDeviceIfa());
+                return;
+            }
+            displays.add(hivestackDisplayUuid);
+        });
+
+        return run(report, Flux.fromIterable(displays), hivestackDisplayUuid -> fetch(report, Upstream.HIVESTACK, hivestackDisplayUuid,
+                hivestackService.fetchUpcomingCreatives(hivestackDisplayUuid))
+                .flatMapMany(Flux::fromIterable)
+                .map(creative -> new Registration(creative, BroadsignPartner.BROADSIGN_HIVESTACK, hivestackDisplayUuid)));
+    }
+
+    public PrefetchReport prefetchVistarCreatives() {
+        PrefetchReport report = new PrefetchReport("Vistar");
+
+        // one call per panel and language, whichever screen shows up first carries the display size
+        Map<String, PlaylogRecord> panels = new LinkedHashMap<>();
+        playlogsStore.getPlaylogs().forEach(playlog -> {
+            if (!"Y".equals(playlog.getVistarEnabled())) {
+                return;
+            }
+            String panelId = VistarService.panelId(playlog);
+            if (panelId.isEmpty()) {
+                log.debug("PanelId is empty or null for playlog {}", playlog.getId());
+                return;
+            }
+            panels.putIfAbsent(VistarService.partner(playlog) + ":" + panelId, playlog);
+        });
+
+        return run(report, Flux.fromIterable(panels.values()), playlog -> fetch(report, Upstream.VISTAR, VistarService.panelId(playlog),
+                vistarService.fetchUpcomingCreatives(playlog))
+                .flatMapMany(Flux::fromIterable)
+                .map(creative -> new Registration(creative, VistarService.partner(playlog), VistarService.panelId(playlog))));
+    }
+
+    private <T> PrefetchReport run(PrefetchReport report, Flux<T> screens, Function<T, Flux<Registration>> fetchScreen) {
+        screens
+                .doOnNext(screen -> report.getScreens().increment())
+                .flatMap(fetchScreen, PREFETCH_CONCURRENCY)
+                .filter(registration -> registration.creative.getOriginalUrl() != null && !registration.creative.getOriginalUrl().isEmpty())
+                .distinct(registration -> registration.creative.getOriginalUrl())
+                .doOnNext(registration -> report.getCreatives().increment())
+                .filter(registration -> {
+                    if (cacheData.creativeUrlExists(registration.creative.getOriginalUrl())) {
+                        report.getCreativesKnown().increment();
+                        return false;
+                    }
+                    return true;
+                })
+                .bufferTimeout(BATCH_SIZE, Duration.ofMillis(BATCH_WINDOW_MS))
+                // the window timer emits regardless of demand, hold the batches while all slots are busy
+                .onBackpressureBuffer()
+                .flatMap(batch -> register(report, batch), BATCH_CONCURRENCY)
+                .then()
+                .timeout(Duration.ofMillis(RUN_TIMEOUT_MS))
+                .onErrorResume(e -> {
+                    log.error("Creative prefetch for {} stopped early: {}", report.getPartner(), e.toString());
+                    return Mono.empty();
+                })
+                .block();
+        log.info("event=creative_prefetch {}", report);
+        return report;
+    }
+
+    private Mono<Void> register(PrefetchReport report, List<Registration> batch) {
+        long startedAt = System.nanoTime();
+        return Flux.fromIterable(batch)
+                .flatMap(registration -> rateLimits.get(Upstream.REACH).acquire()
+                        .then(creativeService.createReachCreative(registration.creative, registration.partner, registration.displayId)), REGISTRATION_CONCURRENCY)
+                .reduce(new long[2], (counts, registered) -> {
+                    counts[registered ? 0 : 1]++;
+                    return counts;
+                })
+                .doOnNext(counts -> {
+                    report.getCreativesRegistered().add(counts[0]);
+                    report.getCreativesNotRegistered().add(counts[1]);
+                    report.getBatches().increment();
+                    if (counts[1] > 0) {
+                        report.getBatchesFailed().increment();
+                    }
+                    log.debug("event=creative_batch partner={} size={} registered={} not_registered={} duration_ms={}",
+                            report.getPartner(), batch.size(), counts[0], counts[1], Duration.ofNanos(System.nanoTime() - startedAt).toMillis());
+                })
+                .then();
+    }
+
+    private Mono<List<CreativeRequest>> fetch(PrefetchReport report, Upstream upstream, String displayId, Mono<List<CreativeRequest>> call) {
+        // the permit is taken on every subscription, so each retry waits for its own
+        return rateLimits.get(upstream).acquire()
+                .then(call)
+                .retryWhen(Retry.backoff(RETRY_MAX_ATTEMPTS - 1, Duration.ofMillis(RETRY_MIN_BACKOFF_MS))
+                        .jitter(RETRY_JITTER)
+                        .filter(CreativePrefetchService::isRetryable))
+                .onErrorResume(e -> {
+                    report.getScreensFailed().increment();
+                    log.error("[display: {}] fetching upcoming {} creatives failed: {}", displayId, upstream, e.getMessage());
+                    return Mono.just(Collections.emptyList());
+                });
+    }
+
+    // throttling, server errors and connection trouble are worth another try, anything else will fail again
+    private static boolean isRetryable(Throwable e) {
+        if (e instanceof WebClientResponseException) {
+            WebClientResponseException responseException = (WebClientResponseException) e;
+            return responseException.getRawStatusCode() == 429 || responseException.getRawStatusCode() >= 500;
+        }
+        return e instanceof IOException || e instanceof TimeoutException || e.getCause() instanceof IOException;
+    }
+
+    private <T> T property(Upstream upstream, String name, Class<T> type) {
+        T defaultValue = environment.getRequiredProperty("prefetch.rate-limit.defaults." + name, type);
+        return environment.getProperty("prefetch.rate-limit." + upstream.name().toLowerCase() + "." + name, type, defaultValue);
+    }
+
+    private static class Registration {
+        final CreativeRequest creative;
+        final BroadsignPartner partner;
+        final String displayId;
+
+        Registration(CreativeRequest creative, BroadsignPartner partner, String displayId) {
+            this.creative = creative;
+            this.partner = partner;
+            this.displayId = displayId;
+        }
+    }
+}
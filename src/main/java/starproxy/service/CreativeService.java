@@ -17,6 +17,7 @@
 package starproxy.service;
 
 import starproxy.enums.BroadsignPartner;
+import starproxy.enums.Upstream;
 import starproxy.enums.CreativeType;
 import starproxy.model.starproxy.Creatives;
 import starproxy.model.reach.Advertiser;
@@ -25,9 +26,11 @@ import starproxy.model.reach.IabCategory;
 import starproxy.model.reach.Publisher;
 import starproxy.repository.CreativesRepository;
 import starproxy.util.CacheData;
+import starproxy.util.SingleFlight;
 import starproxy.util.StarproxyUtils;
 import starproxy.util.ThumborUtil;
 import starproxy.util.UUIDType5;
+import starproxy.util.WebClientRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -35,6 +38,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cache.CacheManager;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserters;
@@ -44,7 +48,6 @@ import reactor.core.publisher.Mono;
 
 import java.net.URISyntaxException;
 import java.util.*;
-import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
@@ -102,60 +105,68 @@ public class CreativeService {
 
     private WebClient webClient;
 
-    CreativeService(WebClient webClient) {
-        this.webClient = webClient;
+    // registrations in flight by external id, so an asset showing up on many screens at once is POSTed only once
+    private final SingleFlight<String, Boolean> registrations = new SingleFlight<>();
+
+    CreativeService(WebClientRegistry webClientRegistry) {
+        this.webClient = webClientRegistry.get(Upstream.REACH);
     }
 
     public List<CreativeRequest> jsonArrayToCreativeRequestObject(JSONArray jsonArray, String id, BroadsignPartner partner) {
         return IntStream.range(0, jsonArray.length())
                 .mapToObj(index -> {
-                    CreativeRequest creativeRequest = new CreativeRequest();
                     JSONObject jsonObject = (JSONObject) jsonArray.get(index);
                     String mimeType = jsonObject.getString("mime_type");
                     String url = "";
+                    String name = null;
                     if (partner.equals(BroadsignPartner.BROADSIGN_HIVESTACK)) {
                         url = jsonObject.getString("url");
                         try {
                             if (!jsonObject.optString("advertiser_name").isEmpty()) {
-                                creativeRequest.setName(jsonObject.getString("advertiser_name") + " - " + id);
+                                name = jsonObject.getString("advertiser_name") + " - " + id;
                             }
                         } catch (Exception e) {
-                            log.warn("No advertiser_name found for [display: " + id + "]");
+                            log.warn("No advertiser_name found for [display: {}]", id);
                         }
                     }
                     if (partner.equals(BroadsignPartner.BROADSIGN_VISTAR) || partner.equals(BroadsignPartner.BROADSIGN_VISTAR_FR)) {
                         url = jsonObject.getString("asset_url");
-                        creativeRequest.setName(jsonObject.getString("creative_name"));
-                    }
-
-                    creativeRequest.setOriginalUrl(url);
-                    switch (mimeType) {
-                        case "image/jpeg":
-                            creativeRequest.setType(CreativeType.ImageUrlCreative);
-                            break;
-                        case "image/png":
-                            if (THUMBOR_ENABLED) {
-                                String thumborUrl = thumborUtil.getJpgUrl(url);
-                                log.info("[" + partner + " display: " + id + "] converting original png url " + url + " to new jpg url: " + thumborUrl);
-                                creativeRequest.setType(CreativeType.ImageUrlCreative);
-                                creativeRequest.setThumborUrl(thumborUrl);
-                            } else {
-                                creativeRequest.setType(CreativeType.ImageUrlCreative);
-                            }
-                            break;
-                        case "video/mp4":
-                        case "video/mpeg":
-                            creativeRequest.setType(CreativeType.VideoCreative);
-                            break;
-                        default:
-                            log.error("[" + partner + " display: " + id + "] unknown mimetype (" + mimeType + ") for creative, skipping: " + url);
-                            break;
+                        name = jsonObject.getString("creative_name");
                     }
-                    return creativeRequest;
+                    return toCreativeRequest(url, mimeType, name, id, partner);
                 })
                 .collect(Collectors.toList());
     }
 
+    public CreativeRequest toCreativeRequest(String url, String mimeType, String name, String id, BroadsignPartner partner) {
+        CreativeRequest creativeRequest = new CreativeRequest();
+        creativeRequest.setName(name);
+        creativeRequest.setOriginalUrl(url);
+        switch (mimeType) {
+            case "image/jpeg":
+                creativeRequest.setType(CreativeType.ImageUrlCreative);
+                break;
+            case "image/png":
+                if (THUMBOR_ENABLED) {
+                    String thumborUrl = thumborUtil.getJpgUrl(url);
+                    log.info("[{} display: {}] converting original png url {} to new jpg url: {}", partner, id, url, thumborUrl);
+                    creativeRequest.setType(CreativeType.ImageUrlCreative);
+                    creativeRequest.setThumborUrl(thumborUrl);
+                } else {
+                    creativeRequest.setType(CreativeType.ImageUrlCreative);
+                }
+                break;
+            case "video/mp4":
+            case "video/mpeg":
+                creativeRequest.setType(CreativeType.VideoCreative);
+                break;
+            default:
+                log.error("[{} display: {}] unknown mimetype ({}) for creative, skipping: {}", partner, id, mimeType, url);
+                break;
+        }
+        return creativeRequest;
+    }
+
     public CreativeRequest createCreativeObject(String partner, CreativeRequest creativeRequest) {
 
         Publisher publisher = new Publisher();
@@ -186,7 +197,7 @@ public class CreativeService {
         try {
             externalId = UUIDType5.fromUrlWithStarProxyNamespace(creativeRequest.getOriginalUrl());
         } catch (URISyntaxException e) {
-            log.error("Error encoding the original_url to uuid: " + e.getMessage());
+            log.error("Error encoding the original_url to uuid: {}", e.getMessage());
         }
         creativeRequest.setExternalId(externalId);
         //creativeRequest.setExternalId(UUID.randomUUID().toString());
@@ -208,71 +219,71 @@ public class CreativeService {
         if (creativeRequest.getThumborUrl() != null) {
             tempCreativeRequest.setOriginalUrl(creativeRequest.getThumborUrl());
         }
-        log.debug("[display: " + hivestackDisplayUuid + "] sending creative to [" + creativePostUrl + "]: " + creativeRequest);
-        return webClient
-                .post()
-                .uri(creativePostUrl)
-                .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
-                .header(HttpHeaders.AUTHORIZATION, oauthService.getBearerToken(partner))
-                .body(BodyInserters.fromValue(tempCreativeRequest))
-                .accept(MediaType.APPLICATION_JSON)
-                .exchange();
+        log.debug("[display: {}] sending creative to [{}]: {}", hivestackDisplayUuid, creativePostUrl, creativeRequest);
+        return oauthService.getBearerToken(partner)
+                .flatMap(bearerToken -> webClient
+                        .post()
+                        .uri(creativePostUrl)
+                        .header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_VALUE)
+                        .header(HttpHeaders.AUTHORIZATION, bearerToken)
+                        .body(BodyInserters.fromValue(tempCreativeRequest))
+                        .accept(MediaType.APPLICATION_JSON)
+                        .exchange());
     }
 
     public Mono<Boolean> createReachCreative(CreativeRequest creativeRequest, BroadsignPartner partner, String requestID) {
-        log.debug("Entered createReachCreative() with partner: " + partner + " requestId: " + requestID);
-        CompletableFuture<Boolean> reachCreativeCompletableFuture = new CompletableFuture<>();
-        Mono<Boolean> bodyCompletedMono = Mono.fromFuture(reachCreativeCompletableFuture);
-        creativeRequest = createCreativeObject(partner.name(), creativeRequest);
-        if (creativeRequest.getExternalId().isEmpty()) {
-            log.debug("ExternalId is empty [display: " + requestID + "] [partner: " + partner + "]");
-            reachCreativeCompletableFuture.complete(false);
-            return bodyCompletedMono;
+        log.debug("Entered createReachCreative() with partner: {} requestId: {}", partner, requestID);
+        CreativeRequest finalCreativeRequest = createCreativeObject(partner.name(), creativeRequest);
+        if (finalCreativeRequest.getExternalId().isEmpty()) {
+            log.debug("ExternalId is empty [display: {}] [partner: {}]", requestID, partner);
+            return Mono.just(false);
         }
-        if (cacheData.creativeUrlExists(creativeRequest.getOriginalUrl())) {
-            log.trace("[display: " + requestID + "] creative has already been added this session, skipping: " + creativeRequest.getExternalId() + " - " + creativeRequest.getOriginalUrl());
-            reachCreativeCompletableFuture.complete(false);
-            return bodyCompletedMono;
+        if (cacheData.creativeUrlExists(finalCreativeRequest.getOriginalUrl())) {
+            log.trace("[display: {}] creative has already been added this session, skipping: {} - {}", requestID, finalCreativeRequest.getExternalId(), finalCreativeRequest.getOriginalUrl());
+            return Mono.just(false);
         }
-        log.debug("[display: " + requestID + "] [partner: " + partner + "] adding creative: " + creativeRequest.getExternalId() + " - " + creativeRequest.getOriginalUrl());
-        CreativeRequest finalCreativeRequest = creativeRequest;
-        createCreativeWebClient(requestID, creativeRequest, partner)
-                .subscribe(clientResponse -> {
-                    Mono<String> stringMono = clientResponse.bodyToMono(String.class);
-                    if (clientResponse.statusCode().is2xxSuccessful()) {
-                        stringMono.subscribe(s -> {
-                            JSONObject jsonObject = new JSONObject(s);
-                            Integer id = jsonObject.getInt("id");
-                            if (finalCreativeRequest.getOriginalUrl() != null) {
-                                if (!cacheData.creativeUrlExists(finalCreativeRequest.getOriginalUrl())) {
-                                    saveCreative(id.toString(), finalCreativeRequest.getOriginalUrl(), requestID, partner.name());
-                                    reachCreativeCompletableFuture.complete(true);
-                                } else {
-                                    reachCreativeCompletableFuture.complete(false);
-                                }
+        if (registrations.isInFlight(finalCreativeRequest.getExternalId())) {
+            log.debug("[display: {}] [partner: {}] joining registration in flight: {} - {}", requestID, partner, finalCreativeRequest.getExternalId(), finalCreativeRequest.getOriginalUrl());
+        }
+        return registrations.execute(finalCreativeRequest.getExternalId(), () -> {
+            // a registration may have completed between the check above and this one starting
+            if (cacheData.creativeUrlExists(finalCreativeRequest.getOriginalUrl())) {
+                return Mono.just(false);
+            }
+            log.debug("[display: {}] [partner: {}] adding creative: {} - {}", requestID, partner, finalCreativeRequest.getExternalId(), finalCreativeRequest.getOriginalUrl());
+            return createCreativeWebClient(requestID, finalCreativeRequest, partner)
+                    .flatMap(clientResponse -> clientResponse.bodyToMono(String.class)
+                            .defaultIfEmpty("")
+                            .map(s -> handleCreativeResponse(clientResponse.statusCode(), s, finalCreativeRequest, partner, requestID)))
+                    .onErrorResume(e -> {
+                        log.error("[display: {}] got error when POSTing {} creative {} - {}: {}", requestID, partner, finalCreativeRequest.getExternalId(), finalCreativeRequest.getOriginalUrl(), e.getMessage());
+                        return Mono.just(false);
+                    });
+        });
+    }
 
-                            }
-                        });
-                    }
-                    if (clientResponse.statusCode().is4xxClientError() || clientResponse.statusCode().is5xxServerError()) {
-                        stringMono.subscribe(s -> {
-                            if (s.contains("Must be unique inside")) {
-                                log.debug("[display: " + requestID + "] creative was already in reach: " + finalCreativeRequest.getExternalId() + " - " + finalCreativeRequest.getOriginalUrl());
-                                if (!cacheData.creativeUrlExists(finalCreativeRequest.getOriginalUrl())) {
-                                    log.info("Saving previously created creative to database with url: " + finalCreativeRequest.getOriginalUrl());
-                                    // this isn't really an error, so we're safe to add this to the cache.
-                                    saveCreative(null, finalCreativeRequest.getOriginalUrl(), requestID, partner.name());
-                                    reachCreativeCompletableFuture.complete(true);
-                                }
-                            } else {
-                                log.error("[display: " + requestID + "] got error when POSTing " + partner + " creative " + finalCreativeRequest.getExternalId() + " - " + finalCreativeRequest.getOriginalUrl() + ": " + s);
-                                reachCreativeCompletableFuture.complete(false);
-                            }
-                        });
-                    }
-                });
-        log.debug("Exiting createReachCreative().");
-        return bodyCompletedMono;
+    private boolean handleCreativeResponse(HttpStatus status, String s, CreativeRequest creativeRequest, BroadsignPartner partner, String requestID) {
+        if (status.is2xxSuccessful()) {
+            JSONObject jsonObject = new JSONObject(s);
+            Integer id = jsonObject.getInt("id");
+            if (creativeRequest.getOriginalUrl() != null && !cacheData.creativeUrlExists(creativeRequest.getOriginalUrl())) {
+                saveCreative(id.toString(), creativeRequest.getOriginalUrl(), requestID, partner.name());
+                return true;
+            }
+            return false;
+        }
+        if (s.contains("Must be unique inside")) {
+            log.debug("[display: {}] creative was already in reach: {} - {}", requestID, creativeRequest.getExternalId(), creativeRequest.getOriginalUrl());
+            if (!cacheData.creativeUrlExists(creativeRequest.getOriginalUrl())) {
+                log.info("Saving previously created creative to database with url: {}", creativeRequest.getOriginalUrl());
+                // this isn't really an error, so we're safe to add this to the cache.
+                saveCreative(null, creativeRequest.getOriginalUrl(), requestID, partner.name());
+                return true;
+            }
+            return false;
+        }
+        log.error("[display: {}] got error when POSTing {} creative {} - {}: {}", requestID, partner, creativeRequest.getExternalId(), creativeRequest.getOriginalUrl(), s);
+        return false;
     }
 
 
@@ -281,7 +292,7 @@ public class CreativeService {
         creatives.setReachId(id);
         creatives.setHivestackUrl(url);
         cacheData.saveCreativeUrl(creatives);
-        log.info("Saved to creatives. [display: " + hivestackDisplayUuid + "] [partner: " + partner + "] [reachId: " + creatives.getReachId() + "] [url: " + creatives.getHivestackUrl() + "]");
+        log.info("Saved to creatives. [display: {}] [partner: {}] [reachId: {}] [url: {}]", hivestackDisplayUuid, partner, creatives.getReachId(), creatives.getHivestackUrl());
     }
 
 }
@@ -17,20 +17,29 @@
 package starproxy.service;
 
 import starproxy.enums.BroadsignPartner;
+import starproxy.enums.Upstream;
 import starproxy.model.cache.OAuthToken;
 import starproxy.util.CacheData;
+import starproxy.util.SingleFlight;
+import starproxy.util.StarproxyMetrics;
+import starproxy.util.WebClientRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 @Slf4j
@@ -38,8 +47,8 @@ public class OauthService {
 
     private WebClient webClient;
 
-    OauthService(WebClient webClient) {
-        this.webClient = webClient;
+    OauthService(WebClientRegistry webClientRegistry) {
+        this.webClient = webClientRegistry.get(Upstream.REACH);
     }
 
     @Value("${reach.baseurl}")
@@ -66,27 +75,71 @@ public class OauthService {
     @Value("${reach.hivestack.password}")
     private String HIVESTACK_PASSWORD;
 
+    @Value("${reach.oauth.refresh-ahead-ms}")
+    private Long REFRESH_AHEAD_MS;
+
+    @Value("${reach.oauth.retry.max-attempts}")
+    private Integer RETRY_MAX_ATTEMPTS;
+
+    @Value("${reach.oauth.retry.min-backoff-ms}")
+    private Long RETRY_MIN_BACKOFF_MS;
+
+    @Value("${reach.oauth.failure-cooldown-ms}")
+    private Long FAILURE_COOLDOWN_MS;
+
     @Autowired
     CacheData cacheData;
 
-    public String getBearerToken(BroadsignPartner broadsignPartner) {
-        OAuthToken oAuthToken = cacheData.getOauthToken(broadsignPartner.name());
-        if (oAuthToken.getToken() != null) {
-            Instant validUntill = oAuthToken.getExpiry();
-            if (validUntill.isAfter(Instant.now())) {
-                return oAuthToken.getToken();
-            } else {
-                bearerToken(broadsignPartner.name()).block();
-                return getBearerToken(broadsignPartner);
+    @Autowired
+    StarproxyMetrics starproxyMetrics;
+
+    private final SingleFlight<BroadsignPartner, String> refreshes = new SingleFlight<>();
+    private final Map<BroadsignPartner, Instant> cooldownUntil = new ConcurrentHashMap<>();
+
+    /**
+     * Bearer token for Reach calls made on behalf of the partner. Served from the cache while it is valid, otherwise
+     * all callers wait on the same refresh. Never blocks.
+     */
+    public Mono<String> getBearerToken(BroadsignPartner broadsignPartner) {
+        return Mono.defer(() -> {
+            OAuthToken oAuthToken = cacheData.getOauthToken(broadsignPartner.name());
+            if (oAuthToken.getToken() != null && oAuthToken.getExpiry().isAfter(Instant.now())) {
+                starproxyMetrics.cacheLookup(StarproxyMetrics.CACHE_OAUTH, true);
+                return Mono.just(oAuthToken.getToken());
+            }
+            starproxyMetrics.cacheLookup(StarproxyMetrics.CACHE_OAUTH, false);
+            return refreshToken(broadsignPartner);
+        });
+    }
+
+    // renews tokens that are about to expire so bids and registrations never wait on the token endpoint
+    @Scheduled(fixedDelayString = "${reach.oauth.refresh-check-ms}", initialDelayString = "${reach.oauth.refresh-check-ms}")
+    public void refreshAhead() {
+        Instant refreshBefore = Instant.now().plusMillis(REFRESH_AHEAD_MS);
+        for (BroadsignPartner partner : BroadsignPartner.values()) {
+            OAuthToken oAuthToken = cacheData.getOauthToken(partner.name());
+            if (oAuthToken.getToken() != null && oAuthToken.getExpiry().isBefore(refreshBefore)) {
+                log.debug("Refreshing bearer token for {} ahead of expiry at {}", partner, oAuthToken.getExpiry());
+                refreshToken(partner).subscribe(token -> { }, e -> { });
             }
-        } else {
-            bearerToken(broadsignPartner.name()).block();
-            return getBearerToken(broadsignPartner);
         }
     }
 
-    public Mono<String> bearerToken(String partner) {
-        log.debug("Entering bearerToken() with partner as " + partner);
+    private Mono<String> refreshToken(BroadsignPartner partner) {
+        return refreshes.execute(partner, () -> {
+            Instant until = cooldownUntil.get(partner);
+            if (until != null && until.isAfter(Instant.now())) {
+                return Mono.error(new IllegalStateException("Token endpoint failed recently, not retrying for " + partner + " until " + until));
+            }
+            return bearerToken(partner.name())
+                    .retryWhen(Retry.backoff(RETRY_MAX_ATTEMPTS - 1, Duration.ofMillis(RETRY_MIN_BACKOFF_MS)).jitter(0.5))
+                    .doOnSuccess(token -> cooldownUntil.remove(partner))
+                    .doOnError(e -> cooldownUntil.put(partner, Instant.now().plusMillis(FAILURE_COOLDOWN_MS)));
+        });
+    }
+
+    private Mono<String> bearerToken(String partner) {
+        log.debug("Entering bearerToken() with partner as {}", partner);
         String username = "";
         String password = "";
 
@@ -111,7 +164,7 @@ public class OauthService {
                         .with("password", password))
                 .retrieve()
                 .bodyToMono(String.class)
-                .doOnSuccess(clientResponse -> {
+                .map(clientResponse -> {
                     JSONObject jsonObject = new JSONObject(clientResponse);
                     String accessToken = jsonObject.getString("access_token");
                     OAuthToken oAuthToken = new OAuthToken();
@@ -121,9 +174,10 @@ public class OauthService {
                     oAuthToken.setExpiry(validUntill);
                     oAuthToken.setToken("Bearer " + accessToken);
                     cacheData.updateOauthToken(oAuthToken);
+                    return oAuthToken.getToken();
                 })
                 .doOnError(throwable -> {
-                    log.error("Error fetching the bearer token for Reach operations." + throwable.getMessage());
+                    log.error("Error fetching the bearer token for Reach operations. {}", throwable.getMessage());
                 });
     }
 }
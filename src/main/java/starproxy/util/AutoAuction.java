@@ -0,0 +1,151 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import lombok.Value;
+import starproxy.enums.AutoBidStrategy;
+import starproxy.enums.BroadsignPartner;
+import starproxy.model.bidResponse.Bid;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Picks the winner among the partners asked for one {@code /bids/auto} request. Each partner reports once, with
+ * its bid or null, and {@link #offer} says when the winner can no longer change so the calls still running can be
+ * cancelled: on the first bid for {@link AutoBidStrategy#FIRST}, once no partner still pending outranks the best
+ * bid for {@link AutoBidStrategy#PRIORITY}, and only when everyone answered for {@link AutoBidStrategy#PRICE}.
+ * Once {@link #close()} has picked the winner, later answers are {@link Result#LATE} and never win.
+ * <p>
+ * Partners answer on their own threads, so the methods are synchronized.
+ */
+public class AutoAuction {
+
+    public enum Result {
+        PENDING, // the winner may still change
+        DECIDED, // the winner can no longer change
+        LATE // the auction was already closed, the answer plays no part
+    }
+
+    private final AutoBidStrategy strategy;
+    private final Map<BroadsignPartner, Integer> ranks = new EnumMap<>(BroadsignPartner.class);
+    private final EnumSet<BroadsignPartner> pending;
+    private final List<Offer> offers = new ArrayList<>();
+    private Offer best;
+    private boolean closed;
+
+    /**
+     * @param priority partners from most to least preferred; the ones left out rank after all of them
+     * @param partners the partners asked
+     */
+    public AutoAuction(AutoBidStrategy strategy, List<BroadsignPartner> priority, Collection<BroadsignPartner> partners) {
+        this.strategy = strategy;
+        for (BroadsignPartner partner : BroadsignPartner.values()) {
+            int rank = priority.indexOf(partner);
+            ranks.put(partner, rank < 0 ? priority.size() : rank);
+        }
+        this.pending = partners.isEmpty() ? EnumSet.noneOf(BroadsignPartner.class) : EnumSet.copyOf(partners);
+    }
+
+    /**
+     * Records the answer of a partner, null for no bid.
+     */
+    public synchronized Result offer(BroadsignPartner partner, Bid bid) {
+        if (closed) {
+            return Result.LATE;
+        }
+        pending.remove(partner);
+        if (bid != null) {
+            Offer offer = new Offer(partner, bid);
+            offers.add(offer);
+            if (best == null || beats(offer, best)) {
+                best = offer;
+            }
+        }
+        return isDecided() ? Result.DECIDED : Result.PENDING;
+    }
+
+    /**
+     * Ends the auction; answers that come in afterwards are {@link Result#LATE}.
+     * @return the winner, null without any bid
+     */
+    public synchronized Offer close() {
+        closed = true;
+        return best;
+    }
+
+    public synchronized boolean isDecided() {
+        if (pending.isEmpty()) {
+            return true;
+        }
+        if (best == null) {
+            return false;
+        }
+        switch (strategy) {
+            case FIRST:
+                return true;
+            case PRIORITY:
+                int bestRank = ranks.get(best.getPartner());
+                return pending.stream().allMatch(partner -> ranks.get(partner) > bestRank);
+            default:
+                return false;
+        }
+    }
+
+    public synchronized Offer getWinner() {
+        return best;
+    }
+
+    /**
+     * Bids that were received but not picked.
+     */
+    public synchronized List<Offer> getLosers() {
+        if (offers.size() <= 1) {
+            return Collections.emptyList();
+        }
+        List<Offer> losers = new ArrayList<>(offers);
+        losers.remove(best);
+        return losers;
+    }
+
+    private boolean beats(Offer challenger, Offer current) {
+        switch (strategy) {
+            case PRIORITY:
+                return ranks.get(challenger.getPartner()) < ranks.get(current.getPartner());
+            case PRICE:
+                int byPrice = Double.compare(price(challenger), price(current));
+                return byPrice > 0 || (byPrice == 0 && ranks.get(challenger.getPartner()) < ranks.get(current.getPartner()));
+            default:
+                return false;
+        }
+    }
+
+    private static double price(Offer offer) {
+        return offer.getBid().getPrice() == null ? 0 : offer.getBid().getPrice();
+    }
+
+    @Value
+    public static class Offer {
+        BroadsignPartner partner;
+        Bid bid;
+    }
+}
@@ -16,62 +16,98 @@
 
 package starproxy.util;
 
-import starproxy.model.cache.VastDocument;
 import starproxy.model.starproxy.Creatives;
 import starproxy.model.cache.OAuthToken;
-import starproxy.repository.CreativesRepository;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.cache.annotation.CachePut;
 import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 
 @Component
 @Slf4j
 public class CacheData {
 
     @Autowired
-    CreativesRepository creativesRepository;
+    CreativeWriter creativeWriter;
+
+    @Autowired
+    CreativeRegistry creativeRegistry;
+
+    @Autowired
+    VastDocumentStore vastDocumentStore;
+
+    @Autowired
+    SharedCache sharedCache;
+
+    @Autowired
+    StarproxyMetrics starproxyMetrics;
+
+    private static final String VAST_KEY_PREFIX = "vast:";
 
-    @CachePut(value = "vastDocumentCache", key = "#vastDocument.id")
-    public VastDocument updateVastDocument(VastDocument vastDocument) {
-        log.info("Executing updateVastDocument method...");
-        return vastDocument;
+    /**
+     * Stores the entry in the local VAST store and hands it to the shared tier for the other replicas.
+     *
+     * @return false if the entry could not be stored locally
+     */
+    public boolean putVastDocument(String id, byte[] entry) {
+        if (!vastDocumentStore.put(id, entry)) {
+            return false;
+        }
+        sharedCache.put(VAST_KEY_PREFIX + id, entry, vastDocumentStore.getTtlMs());
+        return true;
     }
 
-    @Cacheable(value = "vastDocumentCache", key = "#id")
-    public VastDocument getVastDocument(String id) {
-        log.debug("Fetching vast document for uuid: " + id);
-        return new VastDocument();
+    /**
+     * Reads the entry from the local VAST store, which acts as near cache for the shared tier: a document cached by
+     * another replica is fetched once and served locally from then on.
+     */
+    public boolean readVastDocument(String id, VastDocumentStore.DocumentReader reader) throws IOException {
+        if (vastDocumentStore.read(id, reader)) {
+            starproxyMetrics.cacheLookup(StarproxyMetrics.CACHE_VAST, true);
+            return true;
+        }
+        starproxyMetrics.cacheLookup(StarproxyMetrics.CACHE_VAST, false);
+        byte[] entry = sharedCache.get(VAST_KEY_PREFIX + id);
+        starproxyMetrics.cacheLookup(StarproxyMetrics.CACHE_VAST_SHARED, entry != null);
+        if (entry == null) {
+            return false;
+        }
+        log.debug("VAST document {} fetched from the shared cache", id);
+        if (vastDocumentStore.put(id, entry)) {
+            return vastDocumentStore.read(id, reader);
+        }
+        reader.read(ByteBuffer.wrap(entry).asReadOnlyBuffer());
+        return true;
     }
 
     @CachePut(value = "oAuthTokenCache", key = "#oAuthToken.broadsignPartner")
     public OAuthToken updateOauthToken(OAuthToken oAuthToken) {
-        log.info("Executing updateOauthToken method...");
+        log.debug("Executing updateOauthToken method...");
         return oAuthToken;
     }
 
     @Cacheable(value = "oAuthTokenCache", key = "#broadsignPartner")
     public OAuthToken getOauthToken(String broadsignPartner) {
-        log.debug("Fetching oauth token for partner: " + broadsignPartner);
+        log.debug("Fetching oauth token for partner: {}", broadsignPartner);
         return new OAuthToken();
     }
 
-    @CachePut(value = "creativeUrlsCache", key = "#creative.hivestackUrl")
+    // write-behind, the registry knows the creative right away and the database catches up in the background
     public boolean saveCreativeUrl(Creatives creative) {
-        try {
-            creativesRepository.save(creative);
-            return true;
-        } catch (Exception e) {
-            log.error("Following error occured while saving creative in database." + e.getMessage());
-            return false;
-        }
+        creativeRegistry.add(creative.getHivestackUrl());
+        creativeWriter.enqueue(creative);
+        return true;
     }
 
-    @Cacheable(value = "creativeUrlsCache", key = "#url")
     public boolean creativeUrlExists(String url) {
-        return creativesRepository.existsCreativeByHivestackUrl(url);
+        boolean exists = creativeRegistry.contains(url);
+        starproxyMetrics.cacheLookup(StarproxyMetrics.CACHE_CREATIVE, exists);
+        return exists;
     }
 
 }
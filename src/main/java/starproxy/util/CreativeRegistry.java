@@ -0,0 +1,88 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import starproxy.repository.CreativesRepository;
+
+import javax.annotation.PostConstruct;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every creative url registered with Reach, held in memory so the bid path never asks the database. Urls are
+ * kept as their Type 5 uuid (see {@link UUIDType5#fromUrlWithStarProxyNamespace(String)}), so two urls that only
+ * differ in their query string count as the same creative, matching the ad ids we hand out.
+ * <p>
+ * The set is reloaded from the creatives table periodically, which also picks up creatives registered by other
+ * instances. Creatives are never removed, so reloads and inserts only ever add to it and need no lock: a reload
+ * running alongside an insert can't drop the new creative.
+ */
+@Component
+@Slf4j
+public class CreativeRegistry {
+
+    @Autowired
+    CreativesRepository creativesRepository;
+
+    private final Set<UUID> creatives = ConcurrentHashMap.newKeySet();
+
+    @PostConstruct
+    public void init() {
+        reload();
+    }
+
+    @Scheduled(fixedDelayString = "${creatives.registry.reload-ms}", initialDelayString = "${creatives.registry.reload-ms}")
+    public void reload() {
+        try {
+            List<String> urls = creativesRepository.findAllHivestackUrls();
+            urls.forEach(url -> creatives.add(key(url)));
+            log.info("Loaded {} creatives from {} creative urls.", creatives.size(), urls.size());
+        } catch (RuntimeException e) {
+            log.error("Error reloading creatives, keeping the {} we have: {}", creatives.size(), e.getMessage());
+        }
+    }
+
+    public boolean contains(String url) {
+        return url != null && creatives.contains(key(url));
+    }
+
+    public void add(String url) {
+        if (url != null) {
+            creatives.add(key(url));
+        }
+    }
+
+    public int size() {
+        return creatives.size();
+    }
+
+    static UUID key(String url) {
+        try {
+            return UUIDType5.uuidFromUrlWithStarProxyNamespace(url);
+        } catch (URISyntaxException e) {
+            // not a url we can strip, key on the whole string instead
+            return UUIDType5.nameUUIDFromNamespaceAndString(UUIDType5.NAMESPACE_STAR, url);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import starproxy.model.starproxy.Creatives;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind for the creatives table. Callers only enqueue; a dedicated thread drains the queue and writes
+ * multi-row upserts, flushing when a batch is full or the flush interval has passed since its first creative.
+ * <p>
+ * Creatives that can't be written (database down, or the queue full) are appended to a spool file and retried
+ * from there, so a creative Reach already knows about is not lost because MySQL was briefly unavailable.
+ * <p>
+ * The upsert relies on the unique index on creatives.hivestack_url; without it every write would add a row. Startup
+ * fails when the index is missing, see {@code db/creatives-unique-hivestack-url.sql} for tables that predate it.
+ */
+@Component
+@DependsOn("entityManagerFactory") // ddl-auto has updated the schema before the index is checked
+@Slf4j
+public class CreativeWriter {
+
+    // hivestack_url is unique, so a creative written twice keeps a single row and the first reach id we learned
+    static final String INSERT = "insert into creatives (hivestack_url, reach_id) values ";
+    static final String ON_DUPLICATE = " on duplicate key update reach_id = coalesce(reach_id, values(reach_id))";
+    static final String TABLE = "creatives";
+    static final String UNIQUE_COLUMN = "hivestack_url";
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Value("${creatives.write-behind.queue-capacity}")
+    private Integer QUEUE_CAPACITY;
+
+    @Value("${creatives.write-behind.batch-size}")
+    private Integer BATCH_SIZE;
+
+    @Value("${creatives.write-behind.flush-interval-ms}")
+    private Long FLUSH_INTERVAL_MS;
+
+    @Value("${creatives.write-behind.retry-interval-ms}")
+    private Long RETRY_INTERVAL_MS;
+
+    @Value("${creatives.write-behind.spool-file}")
+    private String SPOOL_FILE;
+
+    private BlockingQueue<Creatives> queue;
+    private ExecutorService executor;
+    private volatile boolean running;
+    private long nextRetryNanos;
+    private final Object spoolLock = new Object();
+
+    @PostConstruct
+    public void init() {
+        Boolean unique = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                hasUniqueIndex(connection.getMetaData(), connection.getCatalog(), connection.getSchema()));
+        if (!Boolean.TRUE.equals(unique)) {
+            throw new IllegalStateException("No unique index on " + TABLE + "." + UNIQUE_COLUMN + ", creatives would be "
+                    + "written twice. Remove the duplicates and create it with db/creatives-unique-hivestack-url.sql");
+        }
+        queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        running = true;
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "creative-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::run);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        running = false;
+        executor.shutdown();
+        if (!executor.awaitTermination(FLUSH_INTERVAL_MS * 2 + 5000, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+        // whatever the writer didn't get to survives the restart in the spool
+        List<Creatives> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            spool(remaining);
+        }
+    }
+
+    /**
+     * Never blocks: when the queue is full the creative goes straight to the spool.
+     */
+    public void enqueue(Creatives creative) {
+        if (!queue.offer(creative)) {
+            log.warn("Creative write queue is full, spooling {}", creative.getHivestackUrl());
+            spool(Collections.singletonList(creative));
+        }
+    }
+
+    public int getQueued() {
+        return queue.size();
+    }
+
+    private void run() {
+        List<Creatives> batch = new ArrayList<>(BATCH_SIZE);
+        while (running) {
+            try {
+                collect(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!batch.isEmpty()) {
+                write(batch);
+                batch.clear();
+            }
+            if (System.nanoTime() - nextRetryNanos >= 0) {
+                nextRetryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MS);
+                retrySpool();
+            }
+        }
+        queue.drainTo(batch);
+        for (int from = 0; from < batch.size(); from += BATCH_SIZE) {
+            write(batch.subList(from, Math.min(from + BATCH_SIZE, batch.size())));
+        }
+    }
+
+    // waits for a first creative, then fills the batch until it is full or the flush interval is over
+    private void collect(List<Creatives> batch) throws InterruptedException {
+        Creatives first = queue.poll(FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MS);
+        while (batch.size() < BATCH_SIZE) {
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            long remaining = deadline - System.nanoTime();
+            if (batch.size() >= BATCH_SIZE || remaining <= 0) {
+                return;
+            }
+            Creatives next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                return;
+            }
+            batch.add(next);
+        }
+    }
+
+    // an index over hivestack_url alone; one that also covers other columns doesn't make the url unique
+    static boolean hasUniqueIndex(DatabaseMetaData metaData, String catalog, String schema) throws SQLException {
+        String table = metaData.storesUpperCaseIdentifiers() ? TABLE.toUpperCase() : TABLE;
+        Map<String, List<String>> columnsByIndex = new HashMap<>();
+        try (ResultSet indexes = metaData.getIndexInfo(catalog, schema, table, true, false)) {
+            while (indexes.next()) {
+                String index = indexes.getString("INDEX_NAME");
+                String column = indexes.getString("COLUMN_NAME");
+                if (index != null && column != null && !indexes.getBoolean("NON_UNIQUE")) {
+                    columnsByIndex.computeIfAbsent(index, i -> new ArrayList<>()).add(column);
+                }
+            }
+        }
+        return columnsByIndex.values().stream()
+                .anyMatch(columns -> columns.size() == 1 && columns.get(0).equalsIgnoreCase(UNIQUE_COLUMN));
+    }
+
+    void write(List<Creatives> batch) {
+        if (!flush(batch)) {
+            spool(batch);
+        }
+    }
+
+    boolean flush(List<Creatives> batch) {
+        StringBuilder sql = new StringBuilder(INSERT.length() + ON_DUPLICATE.length() + batch.size() * 8).append(INSERT);
+        Object[] args = new Object[batch.size() * 2];
+        for (int i = 0; i < batch.size(); i++) {
+            sql.append(i == 0 ? "(?, ?)" : ", (?, ?)");
+            args[i * 2] = batch.get(i).getHivestackUrl();
+            args[i * 2 + 1] = batch.get(i).getReachId();
+        }
+        sql.append(ON_DUPLICATE);
+        try {
+            jdbcTemplate.update(sql.toString(), args);
+            log.debug("Wrote {} creatives", batch.size());
+            return true;
+        } catch (DataAccessException e) {
+            log.error("Error writing {} creatives, spooling them for retry: {}", batch.size(), e.getMessage());
+            return false;
+        }
+    }
+
+    // one creative per line: reach id (empty when unknown), a tab, the url
+    void spool(List<Creatives> creatives) {
+        synchronized (spoolLock) {
+            Path spoolFile = Paths.get(SPOOL_FILE);
+            try {
+                if (spoolFile.getParent() != null) {
+                    Files.createDirectories(spoolFile.getParent());
+                }
+            } catch (IOException e) {
+                log.error("Error creating the directory of {}: {}", SPOOL_FILE, e.getMessage());
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(spoolFile, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.DSYNC)) {
+                for (Creatives creative : creatives) {
+                    writer.write(creative.getReachId() == null ? "" : creative.getReachId());
+                    writer.write('\t');
+                    writer.write(creative.getHivestackUrl());
+                    writer.newLine();
+                }
+            } catch (IOException e) {
+                log.error("Error spooling {} creatives to {}, they are lost: {}", creatives.size(), SPOOL_FILE, e.getMessage());
+            }
+        }
+    }
+
+    void retrySpool() {
+        Path spoolFile = Paths.get(SPOOL_FILE);
+        List<Creatives> spooled = new ArrayList<>();
+        synchronized (spoolLock) {
+            if (!Files.exists(spoolFile)) {
+                return;
+            }
+            try {
+                for (String line : Files.readAllLines(spoolFile, StandardCharsets.UTF_8)) {
+                    int tab = line.indexOf('\t');
+                    if (tab < 0 || tab == line.length() - 1) {
+                        log.error("Skipping malformed spooled creative: {}", line);
+                        continue;
+                    }
+                    Creatives creative = new Creatives();
+                    creative.setReachId(tab == 0 ? null : line.substring(0, tab));
+                    creative.setHivestackUrl(line.substring(tab + 1));
+                    spooled.add(creative);
+                }
+                Files.delete(spoolFile);
+            } catch (IOException e) {
+                log.error("Error reading spooled creatives from {}: {}", SPOOL_FILE, e.getMessage());
+                return;
+            }
+        }
+        for (int from = 0; from < spooled.size(); from += BATCH_SIZE) {
+            if (!flush(spooled.subList(from, Math.min(from + BATCH_SIZE, spooled.size())))) {
+                spool(spooled.subList(from, spooled.size()));
+                return;
+            }
+        }
+        if (!spooled.isEmpty()) {
+            log.info("Wrote {} spooled creatives", spooled.size());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import starproxy.model.hivestack.ScheduledVast;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.StringReader;
+
+/**
+ * Single pass StAX reader for the Hivestack schedulevast response. Pulls out the impression url and the
+ * first media file (type and url) of ad 1, which is all the bid path needs.
+ */
+public class HivestackVastParser {
+
+    private static final String[] IMPRESSION_PATH = {"VAST", "Ad", "InLine", "Impression"};
+    private static final String[] MEDIA_FILE_PATH = {"VAST", "Ad", "InLine", "Creatives", "Creative", "Linear", "MediaFiles", "MediaFile"};
+    private static final int MAX_DEPTH = 32;
+
+    // factories are not guaranteed to be thread safe, and creating one per call is the expensive part
+    private static final ThreadLocal<XMLInputFactory> XML_INPUT_FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    });
+
+    /**
+     * @param vast the schedulevast response body
+     * @return the scheduled ad, or null when the document is not a VAST 2.0 document with content (nothing scheduled)
+     * @throws XMLStreamException if the document is not well formed
+     */
+    public static ScheduledVast parse(String vast) throws XMLStreamException {
+        XMLStreamReader reader = XML_INPUT_FACTORY.get().createXMLStreamReader(new StringReader(vast));
+        try {
+            ScheduledVast scheduledVast = new ScheduledVast();
+            String[] path = new String[MAX_DEPTH];
+            int depth = 0;
+            boolean firstAd = false;
+            boolean hasContent = false;
+            int captureDepth = 0;
+            StringBuilder captured = new StringBuilder();
+
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String name = reader.getLocalName();
+                        if (depth == 0 && !("VAST".equals(name) && "2.0".equals(reader.getAttributeValue(null, "version")))) {
+                            return null;
+                        }
+                        if (depth < MAX_DEPTH) {
+                            path[depth] = name;
+                        }
+                        depth++;
+                        if (depth == 2) {
+                            firstAd = "Ad".equals(name) && "1".equals(reader.getAttributeValue(null, "id"));
+                        }
+                        if (firstAd && captureDepth == 0) {
+                            if (scheduledVast.getImpressionUrl() == null && matches(path, depth, IMPRESSION_PATH)) {
+                                captureDepth = depth;
+                            } else if (scheduledVast.getMediaFile() == null && matches(path, depth, MEDIA_FILE_PATH)) {
+                                String type = reader.getAttributeValue(null, "type");
+                                scheduledVast.setMediaType(type == null ? "" : type.strip());
+                                captureDepth = depth;
+                            }
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                        if (!hasContent && !reader.isWhiteSpace()) {
+                            hasContent = !reader.getText().isBlank();
+                        }
+                        if (captureDepth > 0) {
+                            captured.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (captureDepth > 0 && depth == captureDepth) {
+                            if (scheduledVast.getImpressionUrl() == null && matches(path, depth, IMPRESSION_PATH)) {
+                                scheduledVast.setImpressionUrl(captured.toString().strip());
+                            } else {
+                                scheduledVast.setMediaFile(captured.toString().strip());
+                            }
+                            captured.setLength(0);
+                            captureDepth = 0;
+                        }
+                        depth--;
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            if (!hasContent) {
+                return null;
+            }
+            if (scheduledVast.getImpressionUrl() == null) {
+                scheduledVast.setImpressionUrl("");
+            }
+            if (scheduledVast.getMediaType() == null) {
+                scheduledVast.setMediaType("");
+            }
+            if (scheduledVast.getMediaFile() == null) {
+                scheduledVast.setMediaFile("");
+            }
+            return scheduledVast;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static boolean matches(String[] path, int depth, String[] expected) {
+        if (depth != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < depth; i++) {
+            if (!expected[i].equals(path[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks which occurrences of a high volume log event get written: one in every {@code logging.sampling.rate}
+ * per event name. A rate of 1 writes everything.
+ */
+@Component
+public class LogSampler {
+
+    @Value("${logging.sampling.rate}")
+    private long SAMPLING_RATE;
+
+    private final ConcurrentHashMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+
+    public boolean sample(String event) {
+        if (SAMPLING_RATE <= 1) {
+            return true;
+        }
+        return counters.computeIfAbsent(event, e -> new AtomicLong()).getAndIncrement() % SAMPLING_RATE == 0;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import starproxy.enums.BroadsignPartner;
+
+import javax.annotation.PostConstruct;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Win (nurl) and loss (lurl) notification urls we put on our bids. Reach fills in the auction macros and calls
+ * them on {@code /win} and {@code /loss}. Everything but the device and Vistar's expiration url is the same for
+ * every bid of a partner, so it is decoded and joined once at startup.
+ */
+@Component
+public class NotificationUrls {
+
+    @Value("${vastserver.baseurl}")
+    private String VASTSERVER_BASE_URL;
+
+    @Value("${server.servlet.context-path}")
+    private String CONTEXT_PATH;
+
+    @Value("${reach.nurl}")
+    private String NURL;
+
+    @Value("${reach.lurl}")
+    private String LURL;
+
+    private final Map<BroadsignPartner, String> winPrefixes = new EnumMap<>(BroadsignPartner.class);
+    private final Map<BroadsignPartner, String> lossPrefixes = new EnumMap<>(BroadsignPartner.class);
+    private final Map<BroadsignPartner, String> partnerParameters = new EnumMap<>(BroadsignPartner.class);
+    private String lossBase;
+
+    @PostConstruct
+    public void init() {
+        String winBase = VASTSERVER_BASE_URL + CONTEXT_PATH + URLDecoder.decode(NURL, StandardCharsets.UTF_8);
+        lossBase = VASTSERVER_BASE_URL + CONTEXT_PATH + URLDecoder.decode(LURL, StandardCharsets.UTF_8);
+        for (BroadsignPartner partner : BroadsignPartner.values()) {
+            String parameters = "&partner=" + label(partner) + "&device=";
+            partnerParameters.put(partner, parameters);
+            winPrefixes.put(partner, winBase + parameters);
+            lossPrefixes.put(partner, lossBase + parameters);
+        }
+    }
+
+    /**
+     * The partner as it appears in the notification urls, and from there in the auction logs.
+     */
+    public static String label(BroadsignPartner partner) {
+        switch (partner) {
+            case BROADSIGN_HIVESTACK:
+                return "Hivestack";
+            case BROADSIGN_VISTAR:
+                return "Vistar_EN";
+            case BROADSIGN_VISTAR_FR:
+                return "Vistar_FR";
+            default:
+                throw new IllegalArgumentException("Unknown partner " + partner);
+        }
+    }
+
+    public String win(BroadsignPartner partner, String device) {
+        return winPrefixes.get(partner).concat(String.valueOf(device));
+    }
+
+    public String loss(BroadsignPartner partner, String device) {
+        return lossPrefixes.get(partner).concat(String.valueOf(device));
+    }
+
+    /**
+     * Loss url that also carries the partner's own loss notification, which {@code /loss} calls on our behalf.
+     */
+    public String loss(BroadsignPartner partner, String device, String lossUrl) {
+        String encodedLossUrl = URLEncoder.encode(lossUrl, StandardCharsets.UTF_8);
+        String parameters = partnerParameters.get(partner);
+        String devicePart = String.valueOf(device);
+        return new StringBuilder(lossBase.length() + 9 + encodedLossUrl.length() + parameters.length() + devicePart.length())
+                .append(lossBase)
+                .append("&lossurl=")
+                .append(encodedLossUrl)
+                .append(parameters)
+                .append(devicePart)
+                .toString();
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import starproxy.model.starproxy.PlaylogRecord;
+import starproxy.repository.PlaylogsRepository;
+
+import javax.annotation.PostConstruct;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-memory copy of the playlogs table shared by the screen routes and both creative prefetchers.
+ * Kept current with delta loads of rows whose updated_at is past the last watermark, plus a periodic
+ * full load that also picks up deleted rows. Without the updated_at column (see db/playlogs-updated-at.sql)
+ * every sync is a full load.
+ */
+@Component
+@DependsOn("entityManagerFactory") // ddl-auto has had its go at the schema before the column is checked
+@Slf4j
+public class PlaylogsStore {
+
+    static final String TABLE = "playlogs";
+    static final String UPDATED_AT_COLUMN = "updated_at";
+
+    @Autowired
+    PlaylogsRepository playlogsRepository;
+
+    @Autowired
+    JdbcTemplate jdbcTemplate;
+
+    @Value("${playlogs.sync.full-interval-ms}")
+    private Long FULL_SYNC_INTERVAL_MS;
+
+    @Value("${playlogs.sync.overlap-ms}")
+    private Long SYNC_OVERLAP_MS;
+
+    // immutable, replaced as a whole; keyed by playlogs id
+    private volatile Map<Integer, PlaylogRecord> playlogs = Collections.emptyMap();
+    private volatile long version;
+
+    // false when the table has no updated_at to take deltas from
+    private boolean deltaSyncs;
+
+    // only touched under the sync lock
+    private Instant watermark;
+    private Instant lastFullSync = Instant.EPOCH;
+
+    private final List<Consumer<Collection<PlaylogRecord>>> listeners = new CopyOnWriteArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        Boolean updatedAt = jdbcTemplate.execute((ConnectionCallback<Boolean>) connection ->
+                hasUpdatedAt(connection.getMetaData(), connection.getCatalog(), connection.getSchema()));
+        deltaSyncs = Boolean.TRUE.equals(updatedAt);
+        if (!deltaSyncs) {
+            log.warn("No {}.{} column, every playlogs sync reloads the whole table. Add it with db/playlogs-updated-at.sql",
+                    TABLE, UPDATED_AT_COLUMN);
+        }
+        sync();
+    }
+
+    public Collection<PlaylogRecord> getPlaylogs() {
+        return playlogs.values();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Registers a callback run with the new playlogs after every sync that changed them.
+     */
+    public void addListener(Consumer<Collection<PlaylogRecord>> listener) {
+        listeners.add(listener);
+    }
+
+    @Scheduled(fixedDelayString = "${playlogs.sync.delta-interval-ms}", initialDelayString = "${playlogs.sync.delta-interval-ms}")
+    public synchronized void sync() {
+        try {
+            boolean changed;
+            if (!deltaSyncs || watermark == null || Instant.now().isAfter(lastFullSync.plusMillis(FULL_SYNC_INTERVAL_MS))) {
+                changed = fullSync();
+            } else {
+                changed = deltaSync();
+            }
+            if (changed) {
+                Collection<PlaylogRecord> current = getPlaylogs();
+                listeners.forEach(listener -> listener.accept(current));
+            }
+        } catch (RuntimeException e) {
+            // keep serving what we have, the next run retries from the same watermark
+            log.error("Error syncing playlogs, keeping version {}: {}", version, e.getMessage());
+        }
+    }
+
+    private boolean fullSync() {
+        List<PlaylogRecord> records = deltaSyncs ? playlogsRepository.findAllRecords() : playlogsRepository.findAllRecordsWithoutUpdatedAt();
+        Map<Integer, PlaylogRecord> loaded = new HashMap<>(records.size() * 4 / 3 + 1);
+        records.forEach(record -> loaded.put(record.getId(), record));
+        lastFullSync = Instant.now();
+        watermark = maxUpdatedAt(records, Instant.EPOCH);
+        log.debug("Full playlogs sync loaded {} rows, watermark {}", loaded.size(), watermark);
+        if (loaded.equals(playlogs)) {
+            return false;
+        }
+        publish(loaded);
+        return true;
+    }
+
+    private boolean deltaSync() {
+        // rows committed late can carry a timestamp slightly behind the watermark, so look back a little;
+        // applying a row twice is harmless
+        List<PlaylogRecord> records = playlogsRepository.findRecordsUpdatedSince(watermark.minusMillis(SYNC_OVERLAP_MS));
+        watermark = maxUpdatedAt(records, watermark);
+        Map<Integer, PlaylogRecord> updated = new HashMap<>(playlogs);
+        records.forEach(record -> {
+            if (record.getReachDeviceIfa() == null) {
+                updated.remove(record.getId());
+            } else {
+                updated.put(record.getId(), record);
+            }
+        });
+        if (updated.equals(playlogs)) {
+            return false;
+        }
+        log.debug("Delta playlogs sync applied {} rows, watermark {}", records.size(), watermark);
+        publish(updated);
+        return true;
+    }
+
+    private void publish(Map<Integer, PlaylogRecord> updated) {
+        playlogs = Collections.unmodifiableMap(updated);
+        version++;
+        log.info("Playlogs version {} published with {} rows.", version, updated.size());
+    }
+
+    static boolean hasUpdatedAt(DatabaseMetaData metaData, String catalog, String schema) throws SQLException {
+        boolean upperCase = metaData.storesUpperCaseIdentifiers();
+        try (ResultSet columns = metaData.getColumns(catalog, schema, upperCase ? TABLE.toUpperCase() : TABLE,
+                upperCase ? UPDATED_AT_COLUMN.toUpperCase() : UPDATED_AT_COLUMN)) {
+            return columns.next();
+        }
+    }
+
+    private static Instant maxUpdatedAt(List<PlaylogRecord> records, Instant from) {
+        Instant max = from;
+        for (PlaylogRecord record : records) {
+            if (record.getUpdatedAt() != null && record.getUpdatedAt().isAfter(max)) {
+                max = record.getUpdatedAt();
+            }
+        }
+        return max;
+    }
+}
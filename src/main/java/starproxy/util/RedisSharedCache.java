@@ -0,0 +1,145 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.codec.ByteArrayCodec;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shared tier on anything speaking the Redis protocol. One multiplexed connection; writes are fire and forget,
+ * reads wait at most the configured timeout. The connection is made in the background and retried until Redis
+ * answers, so an outage doesn't keep replicas from starting; until then reads are misses and writes are dropped.
+ */
+@Slf4j
+public class RedisSharedCache implements SharedCache, AutoCloseable {
+
+    private static final Duration RECONNECT_DELAY = Duration.ofSeconds(5);
+
+    private final RedisClient redisClient;
+    private final RedisURI redisUri;
+    private final String keyPrefix;
+    private final long timeoutMs;
+    private final Duration reconnectDelay;
+    private volatile StatefulRedisConnection<String, byte[]> connection;
+    private volatile boolean closed;
+
+    public RedisSharedCache(String uri, String keyPrefix, Duration timeout) {
+        this(uri, keyPrefix, timeout, RECONNECT_DELAY);
+    }
+
+    RedisSharedCache(String uri, String keyPrefix, Duration timeout, Duration reconnectDelay) {
+        this.redisClient = RedisClient.create();
+        this.redisClient.setDefaultTimeout(timeout);
+        // once connected lettuce reconnects by itself; commands made while it does are failed rather than queued
+        this.redisClient.setOptions(ClientOptions.builder()
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .build());
+        this.redisUri = RedisURI.create(uri);
+        this.keyPrefix = keyPrefix;
+        this.timeoutMs = timeout.toMillis();
+        this.reconnectDelay = reconnectDelay;
+        try {
+            // a reachable server is connected before the first request, an unreachable one is left to the retries
+            connect().get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.debug("Shared cache at {} not connected yet: {}", redisUri, e.toString());
+        }
+    }
+
+    boolean isConnected() {
+        return connection != null;
+    }
+
+    private CompletableFuture<?> connect() {
+        if (closed) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return redisClient.connectAsync(RedisCodec.of(StringCodec.UTF8, ByteArrayCodec.INSTANCE), redisUri)
+                .whenComplete((connected, e) -> {
+                    if (e == null) {
+                        if (closed) {
+                            connected.closeAsync();
+                            return;
+                        }
+                        connection = connected;
+                        log.info("Connected to the shared cache at {}", redisUri);
+                        return;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    log.error("Error connecting to the shared cache at {}, retrying in {}ms: {}", redisUri, reconnectDelay.toMillis(), e.getMessage());
+                    redisClient.getResources().eventExecutorGroup()
+                            .schedule(this::connect, reconnectDelay.toMillis(), TimeUnit.MILLISECONDS);
+                })
+                .toCompletableFuture();
+    }
+
+    @Override
+    public void put(String key, byte[] value, long ttlMs) {
+        StatefulRedisConnection<String, byte[]> connection = this.connection;
+        if (connection == null) {
+            return;
+        }
+        connection.async().set(keyPrefix + key, value, SetArgs.Builder.px(ttlMs))
+                .exceptionally(e -> {
+                    log.error("Error writing {} to the shared cache: {}", key, e.getMessage());
+                    return null;
+                });
+    }
+
+    @Override
+    public byte[] get(String key) {
+        StatefulRedisConnection<String, byte[]> connection = this.connection;
+        if (connection == null) {
+            return null;
+        }
+        try {
+            return connection.async().get(keyPrefix + key).get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            log.error("Error reading {} from the shared cache: {}", key, e.toString());
+            return null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (connection != null) {
+            connection.close();
+        }
+        redisClient.shutdown();
+    }
+}
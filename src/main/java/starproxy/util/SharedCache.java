@@ -0,0 +1,32 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+/**
+ * Cache tier shared by all proxy replicas, so a document cached by the replica that answered the bid can be served
+ * by whichever replica the player reaches. Implementations must never fail the caller: a write that can't be made
+ * is dropped and a read that can't be made is a miss.
+ */
+public interface SharedCache {
+
+    void put(String key, byte[] value, long ttlMs);
+
+    /**
+     * @return the value, or null on a miss or when the shared tier can't be reached in time
+     */
+    byte[] get(String key);
+}
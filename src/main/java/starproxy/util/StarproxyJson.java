@@ -0,0 +1,82 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.web.reactive.function.BodyInserter;
+import reactor.core.publisher.Mono;
+import starproxy.model.bidRequest.BidRequest;
+import starproxy.model.bidResponse.BidResponse;
+import starproxy.model.vistar.VistarRequest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Shared Jackson mapper and pre-built writers for the objects we serialize on every bid. Building an
+ * ObjectMapper is expensive and throws away its serializer cache, so everything goes through this one.
+ */
+public class StarproxyJson {
+
+    public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final ObjectWriter BID_RESPONSE_WRITER = OBJECT_MAPPER.writerFor(BidResponse.class);
+    private static final ObjectWriter BID_REQUEST_WRITER = OBJECT_MAPPER.writerFor(BidRequest.class);
+    private static final ObjectWriter VISTAR_REQUEST_WRITER = OBJECT_MAPPER.writerFor(VistarRequest.class);
+
+    public static String toJson(Object object) throws JsonProcessingException {
+        return OBJECT_MAPPER.writeValueAsString(object);
+    }
+
+    public static String writeBidRequest(BidRequest bidRequest) throws JsonProcessingException {
+        return BID_REQUEST_WRITER.writeValueAsString(bidRequest);
+    }
+
+    /**
+     * Serializes straight to UTF-8 bytes; Jackson recycles its internal buffers per thread so no
+     * intermediate String is built.
+     */
+    public static byte[] writeBidResponse(BidResponse bidResponse) throws JsonProcessingException {
+        return BID_RESPONSE_WRITER.writeValueAsBytes(bidResponse);
+    }
+
+    /**
+     * Request body for the Vistar ad call, written directly into a buffer from the connection's (pooled) allocator.
+     */
+    public static BodyInserter<VistarRequest, ReactiveHttpOutputMessage> vistarRequestBody(VistarRequest vistarRequest) {
+        return (outputMessage, context) -> outputMessage.writeWith(
+                Mono.fromCallable(() -> write(VISTAR_REQUEST_WRITER, vistarRequest, outputMessage.bufferFactory())));
+    }
+
+    private static DataBuffer write(ObjectWriter writer, Object value, DataBufferFactory bufferFactory) {
+        DataBuffer buffer = bufferFactory.allocateBuffer();
+        try (OutputStream outputStream = buffer.asOutputStream()) {
+            writer.writeValue(outputStream, value);
+            return buffer;
+        } catch (IOException e) {
+            DataBufferUtils.release(buffer);
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import starproxy.enums.BidOutcome;
+import starproxy.enums.BroadsignPartner;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Meters of the bid path. Tags only take values from enums or fixed names, so the number of series stays small:
+ * <ul>
+ * <li>{@code starproxy.bid.request}: time from receiving a bid request to answering it, by partner, or auto for
+ * {@code /bids/auto}</li>
+ * <li>{@code starproxy.partner.request}: time of the ad call to the partner, by partner and result</li>
+ * <li>{@code starproxy.bid.outcome}: how bid requests ended, by partner and {@link BidOutcome}</li>
+ * <li>{@code starproxy.cache.requests}: lookups in the VAST, creative and OAuth caches, by cache and result</li>
+ * </ul>
+ * Timers publish percentile histograms, so p99 can be computed per partner and across replicas.
+ */
+@Component
+public class StarproxyMetrics {
+
+    public static final String CACHE_VAST = "vast";
+    public static final String CACHE_VAST_SHARED = "vast-shared";
+    public static final String CACHE_CREATIVE = "creative";
+    public static final String CACHE_OAUTH = "oauth";
+
+    private static final Duration MIN_EXPECTED = Duration.ofMillis(1);
+    private static final Duration MAX_EXPECTED = Duration.ofSeconds(5);
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private final Map<BroadsignPartner, Timer> bidRequests = new EnumMap<>(BroadsignPartner.class);
+    private Timer autoBidRequests;
+    private final Map<BroadsignPartner, Map<SignalType, Timer>> partnerRequests = new EnumMap<>(BroadsignPartner.class);
+    private final Map<BroadsignPartner, Map<BidOutcome, Counter>> outcomes = new EnumMap<>(BroadsignPartner.class);
+    private final Map<String, Counter> cacheHits = new ConcurrentHashMap<>();
+    private final Map<String, Counter> cacheMisses = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        for (BroadsignPartner partner : BroadsignPartner.values()) {
+            String partnerTag = partner.name().toLowerCase();
+            bidRequests.put(partner, timer("starproxy.bid.request", "Bid requests from receipt to answer")
+                    .tag("partner", partnerTag)
+                    .register(meterRegistry));
+            Map<SignalType, Timer> results = new EnumMap<>(SignalType.class);
+            results.put(SignalType.ON_COMPLETE, partnerRequest(partnerTag, "success"));
+            results.put(SignalType.ON_ERROR, partnerRequest(partnerTag, "error"));
+            results.put(SignalType.CANCEL, partnerRequest(partnerTag, "cancelled"));
+            partnerRequests.put(partner, results);
+            Map<BidOutcome, Counter> counters = new EnumMap<>(BidOutcome.class);
+            for (BidOutcome outcome : BidOutcome.values()) {
+                counters.put(outcome, Counter.builder("starproxy.bid.outcome")
+                        .tag("partner", partnerTag)
+                        .tag("outcome", outcome.getTag())
+                        .register(meterRegistry));
+            }
+            outcomes.put(partner, counters);
+        }
+        autoBidRequests = timer("starproxy.bid.request", "Bid requests from receipt to answer")
+                .tag("partner", "auto")
+                .register(meterRegistry);
+        for (String cache : new String[]{CACHE_VAST, CACHE_VAST_SHARED, CACHE_CREATIVE, CACHE_OAUTH}) {
+            cacheHits.put(cache, cacheCounter(cache, "hit"));
+            cacheMisses.put(cache, cacheCounter(cache, "miss"));
+        }
+    }
+
+    public void bidRequest(BroadsignPartner partner, long receivedAtNanos) {
+        bidRequests.get(partner).record(System.nanoTime() - receivedAtNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void autoBidRequest(long receivedAtNanos) {
+        autoBidRequests.record(System.nanoTime() - receivedAtNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void outcome(BroadsignPartner partner, BidOutcome outcome) {
+        outcomes.get(partner).get(outcome).increment();
+    }
+
+    /**
+     * Times each subscription to the partner call, tagged with how it ended; a call cut short by the bid deadline
+     * counts as cancelled.
+     */
+    public <T> Function<Mono<T>, Mono<T>> timePartnerCall(BroadsignPartner partner) {
+        Map<SignalType, Timer> results = partnerRequests.get(partner);
+        return call -> Mono.defer(() -> {
+            long startedAt = System.nanoTime();
+            return call.doFinally(signal -> {
+                Timer timer = results.get(signal);
+                if (timer != null) {
+                    timer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                }
+            });
+        });
+    }
+
+    public void cacheLookup(String cache, boolean hit) {
+        (hit ? cacheHits : cacheMisses).get(cache).increment();
+    }
+
+    private Timer partnerRequest(String partnerTag, String result) {
+        return timer("starproxy.partner.request", "Ad calls to the partner")
+                .tag("partner", partnerTag)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+
+    private static Timer.Builder timer(String name, String description) {
+        return Timer.builder(name)
+                .description(description)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_EXPECTED)
+                .maximumExpectedValue(MAX_EXPECTED);
+    }
+
+    private Counter cacheCounter(String cache, String result) {
+        return Counter.builder("starproxy.cache.requests")
+                .tag("cache", cache)
+                .tag("result", result)
+                .register(meterRegistry);
+    }
+}
@@ -17,70 +17,83 @@
 package starproxy.util;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import starproxy.model.starproxy.Playlogs;
-import starproxy.repository.PlaylogsRepository;
-import lombok.Data;
+import starproxy.model.cache.ScreenRoutes;
+import starproxy.model.cache.ScreenRoutesSnapshot;
+import starproxy.model.starproxy.PlaylogRecord;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
-import org.springframework.transaction.annotation.Transactional;
 
 import javax.annotation.PostConstruct;
+import java.time.Instant;
 import java.util.*;
 
 @Component
 @Slf4j
-@Data
 public class StarproxyUtils {
 
     @Autowired
-    PlaylogsRepository playlogsRepository;
+    PlaylogsStore playlogsStore;
 
     @PostConstruct
     public void init() {
-        fetchAllReachMappings();
+        fetchAllReachMappings(playlogsStore.getPlaylogs());
+        playlogsStore.addListener(this::fetchAllReachMappings);
     }
 
-    private Map<String,String> reachHivestackMappingsMap = new HashMap<>();
-    private Map<String,String> reachVistarMappingsMap = new HashMap<>();
-    private Map<String,String> reachVistarFrenchMappingsMap = new HashMap<>();
+    // replaced as a whole on every refresh, bid threads only ever read it
+    private volatile ScreenRoutesSnapshot screenRoutesSnapshot = ScreenRoutesSnapshot.EMPTY;
 
 
     //convert object to json string
     public String mapToJson(Object object) throws JsonProcessingException {
-        ObjectMapper objectMapper = new ObjectMapper();
-        return objectMapper.writeValueAsString(object);
+        return StarproxyJson.toJson(object);
     }
 
-    @Transactional
-    public void fetchAllReachMappings() {
-        log.debug("Entering fetchAllReachMappings()");
+    /**
+     * @return the partner routes for the Reach screen, or null if the screen is not mapped to any partner
+     */
+    public ScreenRoutes getScreenRoutes(String reachDeviceIfa) {
+        return reachDeviceIfa == null ? null : screenRoutesSnapshot.get(reachDeviceIfa);
+    }
+
+    public ScreenRoutesSnapshot getScreenRoutesSnapshot() {
+        return screenRoutesSnapshot;
+    }
 
-        // fetching all reach to hivestack mappings from database
-        List<Playlogs> playlogsList = playlogsRepository.findAllByReachDeviceIfaNotNull();
+    // rebuilt whenever the playlogs store publishes a change
+    public void fetchAllReachMappings(Collection<PlaylogRecord> playlogsList) {
+        log.debug("Entering fetchAllReachMappings()");
+        ScreenRoutesSnapshot previous = screenRoutesSnapshot;
+        ScreenRoutesSnapshot snapshot = new ScreenRoutesSnapshot(playlogsStore.getVersion(), Instant.now(), buildScreenRoutes(playlogsList));
+        screenRoutesSnapshot = snapshot;
+        log.info("Screen routes version {} published with {} screens (was {}).", snapshot.getVersion(), snapshot.size(), previous.size());
+        log.debug("Exiting fetchAllReachMappings().");
+    }
 
-        if (!playlogsList.equals(null)) {
-            log.debug("Adding Reach Mappings to cache.");
-            playlogsList.stream().forEach(playlog -> {
-                if (playlog.getHivestackDisplayUuid() != null && playlog.getHivestackEnabled().equals("Y")) {
-                    log.debug(playlog.getReachDeviceIfa() + "----Hivestack---->" + playlog.getHivestackDisplayUuid());
-                    reachHivestackMappingsMap.put(playlog.getReachDeviceIfa(),playlog.getHivestackDisplayUuid());
+    private Map<String, ScreenRoutes> buildScreenRoutes(Collection<PlaylogRecord> playlogsList) {
+        Map<String, ScreenRoutes.ScreenRoutesBuilder> builders = new HashMap<>();
+        playlogsList.forEach(playlog -> {
+            String ifa = playlog.getReachDeviceIfa();
+            if (playlog.getHivestackDisplayUuid() != null && "Y".equals(playlog.getHivestackEnabled())) {
+                log.debug("{}----Hivestack---->{}", ifa, playlog.getHivestackDisplayUuid());
+                builders.computeIfAbsent(ifa, k -> ScreenRoutes.builder()).hivestackDisplayUuid(playlog.getHivestackDisplayUuid());
+            }
+            if (playlog.getGeneratorId() != null && "Y".equals(playlog.getVistarEnabled())) {
+                String panelId = playlog.getGeneratorId().substring(playlog.getGeneratorId().lastIndexOf(":") + 1).strip();
+                if (!panelId.isBlank() && "EN".equals(playlog.getVistarLanguage())) {
+                    log.debug("{}----Vistar---->{}", ifa, panelId);
+                    builders.computeIfAbsent(ifa, k -> ScreenRoutes.builder()).vistarVenueId(panelId);
                 }
-                if (playlog.getGeneratorId() != null && playlog.getVistarEnabled().equals("Y")) {
-                    String panelId = playlog.getGeneratorId().substring(playlog.getGeneratorId().lastIndexOf(":") + 1).strip();
-                    if (!panelId.isBlank() && panelId != null && playlog.getVistarLanguage().equals("EN")) {
-                        log.debug(playlog.getReachDeviceIfa() + "----Vistar---->" + panelId);
-                        reachVistarMappingsMap.put(playlog.getReachDeviceIfa(), panelId);
-                    }
-                    if (!panelId.isBlank() && panelId != null && playlog.getVistarLanguage().equals("FR")) {
-                        log.debug(playlog.getReachDeviceIfa() + "----Vistar-French---->" + panelId);
-                        reachVistarFrenchMappingsMap.put(playlog.getReachDeviceIfa(), panelId);
-                    }
+                if (!panelId.isBlank() && "FR".equals(playlog.getVistarLanguage())) {
+                    log.debug("{}----Vistar-French---->{}", ifa, panelId);
+                    builders.computeIfAbsent(ifa, k -> ScreenRoutes.builder()).vistarFrenchVenueId(panelId);
                 }
-            });
-        }
-        log.debug("Exiting fetchAllReachMappings().");
+            }
+        });
+        Map<String, ScreenRoutes> routes = new HashMap<>(builders.size() * 4 / 3 + 1);
+        builders.forEach((ifa, builder) -> routes.put(ifa, builder.build()));
+        return Collections.unmodifiableMap(routes);
     }
 
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free token bucket, kept as the time the next permit becomes free (GCRA). Up to {@code burst} permits are
+ * handed out back to back, after that one per {@code 1 / permitsPerSecond}. Callers are delayed, never refused.
+ */
+public class TokenBucket {
+
+    private final long intervalNanos;
+    private final long burstToleranceNanos;
+    private final AtomicLong nextFreeNanos;
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        if (permitsPerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive and burst at least 1");
+        }
+        this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.burstToleranceNanos = (burst - 1) * intervalNanos;
+        this.nextFreeNanos = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Reserves a permit.
+     *
+     * @return nanoseconds the caller has to wait before using it, 0 if it can go now
+     */
+    public long reserve(long nowNanos) {
+        while (true) {
+            long nextFree = nextFreeNanos.get();
+            long start = Math.max(nextFree, nowNanos);
+            if (nextFreeNanos.compareAndSet(nextFree, start + intervalNanos)) {
+                return Math.max(0, start - burstToleranceNanos - nowNanos);
+            }
+        }
+    }
+
+    /**
+     * Completes once a permit is available. Subscribing reserves the permit, so put it inside the retried chain
+     * for every attempt to pay for its own call.
+     */
+    public Mono<Void> acquire() {
+        return Mono.defer(() -> {
+            long wait = reserve(System.nanoTime());
+            return wait == 0 ? Mono.empty() : Mono.delay(Duration.ofNanos(wait)).then();
+        });
+    }
+}
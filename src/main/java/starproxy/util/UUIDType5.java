@@ -21,8 +21,10 @@ import java.net.URISyntaxException;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Type 5 uuid generator shamelessly stolen from https://stackoverflow.com/a/40230410
@@ -39,6 +41,24 @@ public class UUIDType5 {
     public static final UUID NAMESPACE_STAR = UUID.fromString("6c0279cc-7574-4b4f-b0f8-046e9c034ce8");
 
 
+    // asset urls repeat from bid to bid, so their uuids are remembered, keyed by the url without its query since
+    // signed or cache-busted urls differ only there. Past this many, a few arbitrary entries make room.
+    static final int MEMO_CAPACITY = 10_000;
+    private static final int MEMO_EVICTIONS = 16;
+
+    private static final ConcurrentHashMap<String, UUID> MEMO = new ConcurrentHashMap<>();
+
+    // MessageDigest isn't thread safe and getInstance() walks the security providers on every call
+    private static final ThreadLocal<MessageDigest> SHA1 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new InternalError("SHA-1 not supported");
+        }
+    });
+
+    private static final byte[] NAMESPACE_STAR_BYTES = toBytes(NAMESPACE_STAR);
+
     /**
      * This encodes the url, minus the query string, as a filename-safe string of characters.
      * @param url the url to encode
@@ -46,15 +66,104 @@ public class UUIDType5 {
      * @return a filename-safe string.
      */
     public static String fromUrlWithStarProxyNamespace(String url) throws URISyntaxException {
+        return uuidFromUrlWithStarProxyNamespace(url).toString();
+    }
+
+    /**
+     * Same as {@link #fromUrlWithStarProxyNamespace(String)}, without the round trip through a string.
+     */
+    public static UUID uuidFromUrlWithStarProxyNamespace(String url) throws URISyntaxException {
+        String stripped = stripQuery(url);
+        UUID uuid = MEMO.get(stripped);
+        if (uuid == null) {
+            uuid = nameUUIDFromNamespaceAndString(NAMESPACE_STAR, stripped);
+            if (MEMO.size() >= MEMO_CAPACITY) {
+                evict();
+            }
+            MEMO.put(stripped, uuid);
+        }
+        return uuid;
+    }
+
+    static int memoSize() {
+        return MEMO.size();
+    }
+
+    // the iterator walks the hash table, so what it hands out first is unrelated to how recently a url was used
+    private static void evict() {
+        Iterator<String> keys = MEMO.keySet().iterator();
+        for (int i = 0; i < MEMO_EVICTIONS && keys.hasNext(); i++) {
+            keys.next();
+            keys.remove();
+        }
+    }
+
+    /**
+     * The url without its query string. Plain ascii urls are cut without parsing; anything with escapes or
+     * characters the fast path doesn't vouch for goes through {@link URI}, whose decoding and re-quoting can
+     * change them.
+     */
+    static String stripQuery(String url) throws URISyntaxException {
+        int query = simpleUrlQueryIndex(url);
+        if (query == -1) {
+            return url;
+        }
+        if (query >= 0) {
+            int fragment = url.indexOf('#', query);
+            return fragment < 0 ? url.substring(0, query) : url.substring(0, query) + url.substring(fragment);
+        }
         URI uri = new URI(url);
         // https://stackoverflow.com/a/27267375
-        String cleanUri = new URI(uri.getScheme(),
+        return new URI(uri.getScheme(),
                 uri.getAuthority(),
                 uri.getPath(),
                 null, // Ignore the query part of the input url
                 uri.getFragment()).toString();
-        final UUID uuid = UUIDType5.nameUUIDFromNamespaceAndString(UUIDType5.NAMESPACE_STAR, cleanUri);
-        return uuid.toString();
+    }
+
+    // for scheme://authority[path][?query][#fragment] made of unescaped ascii: the index of '?', or -1 without a
+    // query. -2 when the url needs the full parser.
+    private static int simpleUrlQueryIndex(String url) {
+        int length = url.length();
+        int i = 0;
+        while (i < length && isSchemeChar(url.charAt(i), i == 0)) {
+            i++;
+        }
+        if (i == 0 || !url.startsWith("://", i)) {
+            return -2;
+        }
+        i += 3;
+        if (i >= length || !isAuthorityChar(url.charAt(i))) {
+            return -2;
+        }
+        int query = -1;
+        boolean fragment = false;
+        for (; i < length; i++) {
+            char c = url.charAt(i);
+            if (c == '?' && query < 0 && !fragment) {
+                query = i;
+            } else if (c == '#' && !fragment) {
+                fragment = true;
+            } else if (!isPlainChar(c)) {
+                return -2;
+            }
+        }
+        return query;
+    }
+
+    private static boolean isSchemeChar(char c, boolean first) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                || (!first && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'));
+    }
+
+    private static boolean isAuthorityChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_';
+    }
+
+    // unreserved and sub-delimiter characters plus ':', '/' and '@', i.e. everything URI passes through unchanged
+    private static boolean isPlainChar(char c) {
+        return isAuthorityChar(c) || c == '~' || c == ':' || c == '/' || c == '@' || c == '!' || c == '$'
+                || c == '&' || c == '\'' || c == '(' || c == ')' || c == '*' || c == '+' || c == ',' || c == ';' || c == '=';
     }
 
     public static UUID nameUUIDFromNamespaceAndString(UUID namespace, String name) {
@@ -62,13 +171,10 @@ public class UUIDType5 {
     }
 
     public static UUID nameUUIDFromNamespaceAndBytes(UUID namespace, byte[] name) {
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new InternalError("SHA-1 not supported");
-        }
-        md.update(toBytes(Objects.requireNonNull(namespace, "namespace is null")));
+        MessageDigest md = SHA1.get();
+        md.reset();
+        Objects.requireNonNull(namespace, "namespace is null");
+        md.update(namespace == NAMESPACE_STAR ? NAMESPACE_STAR_BYTES : toBytes(namespace));
         md.update(Objects.requireNonNull(name, "name is null"));
         byte[] sha1Bytes = md.digest();
         sha1Bytes[6] &= 0x0f;  /* clear version        */
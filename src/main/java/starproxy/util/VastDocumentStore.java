@@ -0,0 +1,186 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off-heap store for the VAST documents served on /cachedDocuments. Documents are kept as UTF-8 bytes in direct
+ * buffers split over segments; each segment is a ring that overwrites its oldest documents when full, so the store
+ * is bounded by bytes rather than by entry count. Segment buffers are only allocated once written to.
+ */
+@Component
+@Slf4j
+public class VastDocumentStore {
+
+    /**
+     * Gets a read only view of the stored document. Called with the segment locked against writers, so it must
+     * copy the bytes out without blocking on the network.
+     */
+    @FunctionalInterface
+    public interface DocumentReader {
+        void read(ByteBuffer document) throws IOException;
+    }
+
+    @Value("${vast-store.max-bytes}")
+    private Long MAX_BYTES;
+
+    @Value("${vast-store.segments}")
+    private Integer SEGMENT_COUNT;
+
+    @Value("${vast-store.ttl-ms}")
+    private Long TTL_MS;
+
+    private Segment[] segments;
+
+    @PostConstruct
+    public void init() {
+        int segmentBytes = (int) Math.min(Integer.MAX_VALUE, MAX_BYTES / SEGMENT_COUNT);
+        segments = new Segment[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(segmentBytes);
+        }
+        log.info("VAST document store: {} segments of {} bytes, documents kept for {} ms.", SEGMENT_COUNT, segmentBytes, TTL_MS);
+    }
+
+    /**
+     * @return false if the document is larger than a segment and could not be stored
+     */
+    public boolean put(String id, byte[] document) {
+        return segment(id).put(id, document, System.currentTimeMillis() + TTL_MS);
+    }
+
+    /**
+     * @return false if there is no live document for the id, the reader is not called then
+     */
+    public boolean read(String id, DocumentReader reader) throws IOException {
+        return segment(id).read(id, reader, System.currentTimeMillis());
+    }
+
+    public long getTtlMs() {
+        return TTL_MS;
+    }
+
+    // drops index entries whose document expired or has been overwritten
+    @Scheduled(fixedDelayString = "${vast-store.sweep-ms}", initialDelayString = "${vast-store.sweep-ms}")
+    public void sweep() {
+        long now = System.currentTimeMillis();
+        int entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.sweep(now);
+        }
+        log.debug("VAST document store holds {} documents", entries);
+    }
+
+    private Segment segment(String id) {
+        int hash = id.hashCode();
+        return segments[Math.floorMod(hash ^ (hash >>> 16), segments.length)];
+    }
+
+    private static final class Entry {
+        final long position;
+        final int length;
+        final long expiresAt;
+
+        Entry(long position, int length, long expiresAt) {
+            this.position = position;
+            this.length = length;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Segment {
+        private final int capacity;
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final Map<String, Entry> index = new HashMap<>();
+        private ByteBuffer buffer;
+        // absolute, only ever grows; the physical offset is position % capacity
+        private long writePosition;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean put(String id, byte[] document, long expiresAt) {
+            if (document.length > capacity) {
+                return false;
+            }
+            lock.writeLock().lock();
+            try {
+                if (buffer == null) {
+                    buffer = ByteBuffer.allocateDirect(capacity);
+                }
+                int offset = (int) (writePosition % capacity);
+                if (offset + document.length > capacity) {
+                    // documents never wrap around the end, skip to the start of the ring
+                    writePosition += capacity - offset;
+                    offset = 0;
+                }
+                ByteBuffer target = buffer.duplicate();
+                target.position(offset);
+                target.put(document);
+                index.put(id, new Entry(writePosition, document.length, expiresAt));
+                writePosition += document.length;
+                return true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        boolean read(String id, DocumentReader reader, long now) throws IOException {
+            lock.readLock().lock();
+            try {
+                Entry entry = index.get(id);
+                if (entry == null || !live(entry, now)) {
+                    return false;
+                }
+                int offset = (int) (entry.position % capacity);
+                ByteBuffer document = buffer.asReadOnlyBuffer();
+                document.position(offset).limit(offset + entry.length);
+                reader.read(document.slice());
+                return true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        int sweep(long now) {
+            lock.writeLock().lock();
+            try {
+                index.values().removeIf(entry -> !live(entry, now));
+                return index.size();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private boolean live(Entry entry, long now) {
+            // once the writer has gone a full lap past the document its bytes are gone
+            return entry.expiresAt > now && writePosition - entry.position <= capacity;
+        }
+    }
+}
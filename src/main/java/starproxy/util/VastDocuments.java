@@ -0,0 +1,152 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of the entries kept in the {@link VastDocumentStore}. The first byte tags the entry: a partner supplied
+ * document is kept as is, a document we build ourselves is kept as just its variables and rendered from the
+ * compiled template when it is served.
+ */
+public class VastDocuments {
+
+    private static final byte RAW = 0;
+    private static final byte VISTAR = 1;
+
+    public static final String VISTAR_VAST_TEMPLATE = "<?xml version=\"1.0\"?>\n" +
+            "<VAST version=\"2.0\">\n" +
+            "    <Ad id=\"1\" sequence=\"1\">\n" +
+            "        <InLine>\n" +
+            "            <Impression>\n" +
+            "                <![CDATA[\n" +
+            "                    %s\n" +
+            "                ]]>\n" +
+            "            </Impression>\n" +
+            "            <Creatives>\n" +
+            "                <Creative>\n" +
+            "                    <Linear>\n" +
+            "                        <Duration>%s</Duration>\n" +
+            "                        <TrackingEvents>\n" +
+            "\n" +
+            "                        </TrackingEvents>\n" +
+            "                        <MediaFiles>\n" +
+            "                            <MediaFile width=\"%d\" height=\"%d\" type=\"%s\" delivery=\"progressive\">\n" +
+            "                                <![CDATA[\n" +
+            "                                    %s\n" +
+            "                                ]]>\n" +
+            "                            </MediaFile>\n" +
+            "\n" +
+            "                        </MediaFiles>\n" +
+            "                    </Linear>\n" +
+            "                </Creative>\n" +
+            "            </Creatives>\n" +
+            "        </InLine>\n" +
+            "    </Ad>\n" +
+            "\n" +
+            "</VAST>";
+
+    private static final VastTemplate VISTAR_TEMPLATE = VastTemplate.compile(VISTAR_VAST_TEMPLATE);
+
+    public static byte[] raw(String document) {
+        byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(1 + bytes.length);
+        entry.put(RAW).put(bytes);
+        return entry.array();
+    }
+
+    /**
+     * Variables of the Vistar VAST document, in template order.
+     */
+    public static byte[] vistar(String popUrl, long lengthInMilliseconds, Integer width, Integer height, String mediaType, String assetUrl) {
+        byte[][] values = {
+                utf8(popUrl),
+                utf8(duration(lengthInMilliseconds)),
+                utf8(String.valueOf(width)),
+                utf8(String.valueOf(height)),
+                utf8(mediaType),
+                utf8(assetUrl)};
+        int length = 1 + values.length * Integer.BYTES;
+        for (byte[] value : values) {
+            length += value.length;
+        }
+        ByteBuffer entry = ByteBuffer.allocate(length);
+        entry.put(VISTAR);
+        for (byte[] value : values) {
+            entry.putInt(value.length).put(value);
+        }
+        return entry.array();
+    }
+
+    /**
+     * @return the number of bytes {@link #writeTo(ByteBuffer, OutputStream)} will write for the entry
+     */
+    public static int renderedLength(ByteBuffer entry) {
+        if (entry.get(entry.position()) == RAW) {
+            return entry.remaining() - 1;
+        }
+        return VISTAR_TEMPLATE.renderedLength(values(entry));
+    }
+
+    public static void writeTo(ByteBuffer entry, OutputStream outputStream) throws IOException {
+        ByteBuffer body = entry.duplicate();
+        byte tag = body.get();
+        switch (tag) {
+            case RAW:
+                // works off the store's buffer in chunks, heap or direct
+                Channels.newChannel(outputStream).write(body);
+                break;
+            case VISTAR:
+                VISTAR_TEMPLATE.render(values(entry), outputStream);
+                break;
+            default:
+                throw new IllegalStateException("Unknown VAST entry type " + tag);
+        }
+    }
+
+    // HH:mm:ss as VAST wants it
+    static String duration(long milliseconds) {
+        long seconds = milliseconds / 1000;
+        StringBuilder duration = new StringBuilder(8);
+        pad(duration, seconds / 3600).append(':');
+        pad(duration, seconds / 60 % 60).append(':');
+        return pad(duration, seconds % 60).toString();
+    }
+
+    private static StringBuilder pad(StringBuilder builder, long value) {
+        return (value < 10 ? builder.append('0') : builder).append(value);
+    }
+
+    private static byte[][] values(ByteBuffer entry) {
+        ByteBuffer body = entry.duplicate();
+        body.get();
+        byte[][] values = new byte[VISTAR_TEMPLATE.slots()][];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new byte[body.getInt()];
+            body.get(values[i]);
+        }
+        return values;
+    }
+
+    private static byte[] utf8(String value) {
+        return String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+    }
+}
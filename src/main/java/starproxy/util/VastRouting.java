@@ -0,0 +1,243 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Mono;
+import starproxy.enums.Upstream;
+
+import javax.annotation.PostConstruct;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.regex.Pattern;
+
+/**
+ * Signed routing tokens carried in the vast_url, so any replica can answer a VAST fetch without a cross node
+ * lookup. A token either holds the VAST entry itself (documents we render from a template, small enough for a
+ * url) or the url of the replica that holds the document, which the receiving replica proxies to.
+ * <p>
+ * Tokens are HMAC signed over the document path with a secret shared by all replicas, so they can't be forged
+ * or moved to another screen or impression. The signed payload carries an expiry matching {@code vast-store.ttl-ms},
+ * so an inline token can't be replayed after the stored document would have expired. A node token is only
+ * followed when its url matches {@code vastserver.routing.peer-url-pattern}, so even a forged one can't point the
+ * proxy at an arbitrary host.
+ */
+@Component
+@Slf4j
+public class VastRouting {
+
+    public static final String TOKEN_PARAMETER = "t";
+    // set on requests proxied to the owner, which must answer from what it has and never forward again
+    public static final String FORWARDED_HEADER = "X-Starproxy-Forwarded";
+
+    private static final byte INLINE = 'I';
+    private static final byte NODE = 'N';
+    private static final int SIGNATURE_BYTES = 16;
+    // kind, then expiry in epoch millis
+    private static final int HEADER_BYTES = 1 + Long.BYTES;
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String PLACEHOLDER = "DEFINE_OR_INJECT";
+    private static final int MIN_SECRET_BYTES = 32;
+
+    @Value("${vastserver.routing.enabled}")
+    private boolean ROUTING_ENABLED;
+
+    @Value("${vastserver.routing.secret}")
+    private String ROUTING_SECRET;
+
+    @Value("${vastserver.routing.node-url}")
+    private String NODE_URL;
+
+    @Value("${vastserver.routing.peer-url-pattern}")
+    private String PEER_URL_PATTERN;
+
+    @Value("${vastserver.routing.proxy-timeout-ms}")
+    private Long PROXY_TIMEOUT_MS;
+
+    @Value("${vastserver.cached-document-path}")
+    private String CACHED_DOCUMENT_PATH;
+
+    @Value("${vast-store.ttl-ms}")
+    private Long TOKEN_TTL_MS;
+
+    @Autowired
+    private WebClientRegistry webClientRegistry;
+
+    private ThreadLocal<Mac> mac;
+    private Pattern peerUrls;
+
+    /**
+     * A verified token: either the VAST entry to render, or the url of the replica holding it.
+     */
+    public static final class Route {
+        private final byte[] entry;
+        private final String nodeUrl;
+
+        private Route(byte[] entry, String nodeUrl) {
+            this.entry = entry;
+            this.nodeUrl = nodeUrl;
+        }
+
+        public byte[] getEntry() {
+            return entry;
+        }
+
+        public String getNodeUrl() {
+            return nodeUrl;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        byte[] secret = ROUTING_SECRET.getBytes(StandardCharsets.UTF_8);
+        if (ROUTING_ENABLED && (PLACEHOLDER.equals(ROUTING_SECRET) || secret.length < MIN_SECRET_BYTES)) {
+            throw new IllegalStateException("vastserver.routing.secret must be set to at least " + MIN_SECRET_BYTES
+                    + " bytes when routing is enabled, anyone knowing it can forge vast tokens");
+        }
+        peerUrls = Pattern.compile(PEER_URL_PATTERN);
+        SecretKeySpec key = new SecretKeySpec(secret, HMAC_ALGORITHM);
+        mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac instance = Mac.getInstance(HMAC_ALGORITHM);
+                instance.init(key);
+                return instance;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(HMAC_ALGORITHM + " not available", e);
+            }
+        });
+    }
+
+    public boolean isEnabled() {
+        return ROUTING_ENABLED;
+    }
+
+    public String getNodeUrl() {
+        return NODE_URL;
+    }
+
+    /**
+     * @return the query string to append to the vast_url for a document rendered from the entry, empty when
+     * routing is off
+     */
+    public String inlineQuery(String uuid, String impressionId, byte[] entry) {
+        return ROUTING_ENABLED ? query(uuid, impressionId, INLINE, entry) : "";
+    }
+
+    /**
+     * @return the query string to append to the vast_url for a document held by this replica, empty when routing
+     * is off
+     */
+    public String nodeQuery(String uuid, String impressionId) {
+        return ROUTING_ENABLED ? query(uuid, impressionId, NODE, NODE_URL.getBytes(StandardCharsets.UTF_8)) : "";
+    }
+
+    /**
+     * @return the route, or null when the token is missing, malformed, expired, not signed for this document or
+     * names a node that is not one of our peers
+     */
+    public Route verify(String uuid, String impressionId, String token) {
+        if (!ROUTING_ENABLED || token == null) {
+            return null;
+        }
+        byte[] decoded;
+        try {
+            decoded = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (decoded.length <= HEADER_BYTES + SIGNATURE_BYTES) {
+            return null;
+        }
+        int payloadLength = decoded.length - SIGNATURE_BYTES;
+        byte[] expected = sign(uuid, impressionId, decoded, payloadLength);
+        if (!MessageDigest.isEqual(expected, Arrays.copyOfRange(decoded, payloadLength, decoded.length))) {
+            log.debug("Rejected vast token for {}/{}", uuid, impressionId);
+            return null;
+        }
+        long expiresAt = ByteBuffer.wrap(decoded, 1, Long.BYTES).getLong();
+        if (System.currentTimeMillis() >= expiresAt) {
+            log.debug("Rejected expired vast token for {}/{}", uuid, impressionId);
+            return null;
+        }
+        byte[] data = Arrays.copyOfRange(decoded, HEADER_BYTES, payloadLength);
+        switch (decoded[0]) {
+            case INLINE:
+                return new Route(data, null);
+            case NODE:
+                String nodeUrl = new String(data, StandardCharsets.UTF_8);
+                if (!peerUrls.matcher(nodeUrl).matches()) {
+                    log.warn("Rejected vast token for {}/{} naming {}, not a peer", uuid, impressionId, nodeUrl);
+                    return null;
+                }
+                return new Route(null, nodeUrl);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Fetches the rendered document from the replica that cached it.
+     *
+     * @return the document, or null when the owner does not answer in time or does not have it
+     */
+    public byte[] fetchFromNode(String nodeUrl, String uuid, String impressionId) {
+        return webClientRegistry.get(Upstream.PEER)
+                .get()
+                .uri(nodeUrl + CACHED_DOCUMENT_PATH + "{uuid}/{impressionId}", uuid, impressionId)
+                .header(FORWARDED_HEADER, "1")
+                .accept(MediaType.APPLICATION_XML)
+                .retrieve()
+                .bodyToMono(byte[].class)
+                .timeout(Duration.ofMillis(PROXY_TIMEOUT_MS))
+                // the owner's copy has expired, the normal end of a document's life
+                .onErrorResume(WebClientResponseException.NotFound.class, e -> {
+                    log.debug("VAST document {}/{} no longer held by {}", uuid, impressionId, nodeUrl);
+                    return Mono.empty();
+                })
+                .onErrorResume(e -> {
+                    log.error("Error fetching VAST document {}/{} from {}: {}", uuid, impressionId, nodeUrl, e.toString());
+                    return Mono.empty();
+                })
+                .block();
+    }
+
+    private String query(String uuid, String impressionId, byte kind, byte[] data) {
+        ByteBuffer token = ByteBuffer.allocate(HEADER_BYTES + data.length + SIGNATURE_BYTES);
+        token.put(kind).putLong(System.currentTimeMillis() + TOKEN_TTL_MS).put(data);
+        token.put(sign(uuid, impressionId, token.array(), HEADER_BYTES + data.length));
+        return "?" + TOKEN_PARAMETER + "=" + Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+    }
+
+    private byte[] sign(String uuid, String impressionId, byte[] payload, int payloadLength) {
+        Mac instance = mac.get();
+        instance.update((uuid + "/" + impressionId + "/").getBytes(StandardCharsets.UTF_8));
+        instance.update(payload, 0, payloadLength);
+        return Arrays.copyOf(instance.doFinal(), SIGNATURE_BYTES);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A format string split once into its static UTF-8 byte segments, with a slot for every {@code %s} or {@code %d}.
+ * Rendering writes the segments and the slot values straight to the output, no formatter and no intermediate string.
+ */
+public final class VastTemplate {
+
+    private final byte[][] segments;
+
+    private VastTemplate(byte[][] segments) {
+        this.segments = segments;
+    }
+
+    public static VastTemplate compile(String format) {
+        List<byte[]> segments = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < format.length() - 1; i++) {
+            if (format.charAt(i) == '%' && (format.charAt(i + 1) == 's' || format.charAt(i + 1) == 'd')) {
+                segments.add(format.substring(start, i).getBytes(StandardCharsets.UTF_8));
+                start = i + 2;
+                i++;
+            }
+        }
+        segments.add(format.substring(start).getBytes(StandardCharsets.UTF_8));
+        return new VastTemplate(segments.toArray(new byte[0][]));
+    }
+
+    public int slots() {
+        return segments.length - 1;
+    }
+
+    public int renderedLength(byte[][] values) {
+        int length = 0;
+        for (byte[] segment : segments) {
+            length += segment.length;
+        }
+        for (byte[] value : values) {
+            length += value.length;
+        }
+        return length;
+    }
+
+    public void render(byte[][] values, OutputStream outputStream) throws IOException {
+        if (values.length != slots()) {
+            throw new IllegalArgumentException("Template has " + slots() + " slots, got " + values.length + " values");
+        }
+        for (int i = 0; i < values.length; i++) {
+            outputStream.write(segments[i]);
+            outputStream.write(values[i]);
+        }
+        outputStream.write(segments[values.length]);
+    }
+}
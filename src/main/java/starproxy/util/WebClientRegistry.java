@@ -0,0 +1,98 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import io.netty.channel.ChannelOption;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+import starproxy.enums.Upstream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * One shared WebClient per upstream, each backed by its own Reactor Netty connection pool.
+ * Pool settings are read from {@code webclient.<upstream>.*}, falling back to {@code webclient.defaults.*}.
+ */
+@Component
+@Slf4j
+public class WebClientRegistry {
+
+    @Autowired
+    private WebClient.Builder webClientBuilder;
+
+    @Autowired
+    private Environment environment;
+
+    private final Map<Upstream, WebClient> webClients = new EnumMap<>(Upstream.class);
+    private final Map<Upstream, ConnectionProvider> connectionProviders = new EnumMap<>(Upstream.class);
+
+    @PostConstruct
+    public void init() {
+        for (Upstream upstream : Upstream.values()) {
+            ConnectionProvider connectionProvider = ConnectionProvider.builder("starproxy-" + upstream.name().toLowerCase())
+                    .maxConnections(property(upstream, "max-connections", Integer.class))
+                    .pendingAcquireMaxCount(property(upstream, "pending-acquire-max-count", Integer.class))
+                    .pendingAcquireTimeout(Duration.ofMillis(property(upstream, "pending-acquire-timeout-ms", Long.class)))
+                    .maxIdleTime(Duration.ofMillis(property(upstream, "max-idle-time-ms", Long.class)))
+                    .maxLifeTime(Duration.ofMillis(property(upstream, "max-life-time-ms", Long.class)))
+                    .build();
+            Integer connectTimeout = property(upstream, "connect-timeout-ms", Integer.class);
+            HttpClient httpClient = HttpClient.create(connectionProvider)
+                    .tcpConfiguration(tcpClient -> tcpClient
+                            .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeout)
+                            .option(ChannelOption.SO_KEEPALIVE, true))
+                    .keepAlive(true);
+            Long responseTimeout = property(upstream, "response-timeout-ms", Long.class);
+            if (responseTimeout > 0) {
+                httpClient = httpClient.responseTimeout(Duration.ofMillis(responseTimeout));
+            }
+            if (property(upstream, "http2", Boolean.class)) {
+                httpClient = httpClient.protocol(HttpProtocol.H2, HttpProtocol.HTTP11);
+            }
+            connectionProviders.put(upstream, connectionProvider);
+            webClients.put(upstream, webClientBuilder.clone()
+                    .clientConnector(new ReactorClientHttpConnector(httpClient))
+                    .build());
+            log.debug("Created WebClient for {} with max connections {}", upstream, property(upstream, "max-connections", Integer.class));
+        }
+    }
+
+    public WebClient get(Upstream upstream) {
+        return webClients.get(upstream);
+    }
+
+    @PreDestroy
+    public void dispose() {
+        connectionProviders.values().forEach(ConnectionProvider::dispose);
+    }
+
+    private <T> T property(Upstream upstream, String name, Class<T> type) {
+        T defaultValue = environment.getRequiredProperty("webclient.defaults." + name, type);
+        return environment.getProperty("webclient." + upstream.name().toLowerCase() + "." + name, type, defaultValue);
+    }
+}
@@ -0,0 +1,19 @@
+-- One-off migration for tables created before creatives.hivestack_url was unique. CreativeWriter's batched
+-- upsert needs the unique index and starproxy refuses to start without it; ddl-auto can't create it while
+-- duplicates exist. Run against the starproxy database before deploying.
+
+-- a duplicate that knows its reach id hands it to the ones that don't
+UPDATE creatives c
+    JOIN (SELECT hivestack_url, MIN(reach_id) AS reach_id
+          FROM creatives
+          WHERE reach_id IS NOT NULL
+          GROUP BY hivestack_url) known ON known.hivestack_url = c.hivestack_url
+SET c.reach_id = known.reach_id
+WHERE c.reach_id IS NULL;
+
+-- keep the oldest row of every url
+DELETE c
+FROM creatives c
+    JOIN creatives older ON older.hivestack_url = c.hivestack_url AND older.id < c.id;
+
+ALTER TABLE creatives ADD UNIQUE INDEX uk_creatives_hivestack_url (hivestack_url);
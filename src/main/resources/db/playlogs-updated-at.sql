@@ -0,0 +1,8 @@
+-- One-off migration for playlogs tables created before the updated_at column. PlaylogsStore takes its delta
+-- syncs from it and falls back to reloading the whole table on every sync while it is missing. playlogs is
+-- shared with other writers, so this runs by hand rather than through ddl-auto. Run against the starproxy
+-- database before deploying.
+
+ALTER TABLE playlogs
+    ADD COLUMN updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP,
+    ADD INDEX idx_playlogs_updated_at (updated_at);
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.service;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+import starproxy.enums.BidOutcome;
+import starproxy.enums.BroadsignPartner;
+import starproxy.model.bidRequest.BidRequest;
+import starproxy.model.bidRequest.Device;
+import starproxy.model.bidRequest.Ext;
+import starproxy.model.bidRequest.Geo;
+import starproxy.model.bidRequest.Impression;
+import starproxy.model.bidResponse.Bid;
+import starproxy.model.cache.ScreenRoutes;
+import starproxy.service.BiddingPartners.VistarService;
+import starproxy.util.StarproxyJson;
+import starproxy.util.StarproxyMetrics;
+import starproxy.util.StarproxyUtils;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+class BidServiceTest {
+
+    private static final String EXPIRATION_URL = "https://vistar.test/expire/1";
+
+    private BidService bidService;
+    private VistarService vistarService;
+    private StarproxyMetrics starproxyMetrics;
+
+    @BeforeAll
+    static void loadJackson() throws Exception {
+        // the first request written to the debug log loads Jackson, which would spend the whole deadline
+        StarproxyJson.writeBidRequest(bidRequest(0));
+    }
+
+    @BeforeEach
+    void setUp() {
+        vistarService = mock(VistarService.class);
+        when(vistarService.fetchVistarRequestObject(anyBoolean()))
+                .thenAnswer(invocation -> new VistarService().fetchVistarRequestObject(false));
+        StarproxyUtils starproxyUtils = mock(StarproxyUtils.class);
+        when(starproxyUtils.getScreenRoutes("screen")).thenReturn(ScreenRoutes.builder().vistarVenueId("venue").build());
+        starproxyMetrics = mock(StarproxyMetrics.class);
+
+        bidService = new BidService();
+        bidService.vistarService = vistarService;
+        bidService.starproxyUtils = starproxyUtils;
+        bidService.starproxyMetrics = starproxyMetrics;
+        ReflectionTestUtils.setField(bidService, "DEADLINE_SAFETY_MARGIN_MS", 0L);
+        ReflectionTestUtils.setField(bidService, "DEFAULT_TMAX_MS", 100L);
+    }
+
+    private static BidRequest bidRequest(int tmax) {
+        Impression impression = new Impression();
+        impression.setId("1");
+        impression.setExt(new Ext());
+        Device device = new Device();
+        device.setUniqueScreenId("screen");
+        device.setGeo(new Geo());
+        BidRequest bidRequest = new BidRequest();
+        bidRequest.setId("request");
+        bidRequest.setTmax(tmax);
+        bidRequest.setImp(Collections.singletonList(impression));
+        bidRequest.setDevice(device);
+        return bidRequest;
+    }
+
+    private void vistarAnswersAfter(Duration delay) {
+        Bid bid = new Bid();
+        bid.setId("ad");
+        bid.setExpirationUrl(EXPIRATION_URL);
+        when(vistarService.fetchVistarAd(any(), anyString(), any(), anyString(), eq(BroadsignPartner.BROADSIGN_VISTAR)))
+                .thenReturn(Mono.just(bid).delayElement(delay));
+    }
+
+    @Test
+    void vistarAdArrivingAfterTheDeadlineIsGivenBack() throws Exception {
+        vistarAnswersAfter(Duration.ofMillis(300));
+
+        ResponseStatusException noBid = assertThrows(ResponseStatusException.class, () ->
+                bidService.biddingRequest(bidRequest(50), BroadsignPartner.BROADSIGN_VISTAR, System.nanoTime()).block());
+        assertEquals(HttpStatus.NO_CONTENT, noBid.getStatus());
+        verify(starproxyMetrics).outcome(BroadsignPartner.BROADSIGN_VISTAR, BidOutcome.TIMEOUT);
+
+        // the exchange was not cancelled: the ad still arrives and Vistar is told we won't play it
+        verify(vistarService, timeout(2000)).callNotifyUrl(EXPIRATION_URL);
+    }
+
+    @Test
+    void vistarAdArrivingInTimeIsKept() throws Exception {
+        vistarAnswersAfter(Duration.ZERO);
+
+        byte[] body = bidService.biddingRequest(bidRequest(1000), BroadsignPartner.BROADSIGN_VISTAR, System.nanoTime()).block();
+        assertNotNull(body);
+        verify(starproxyMetrics).outcome(BroadsignPartner.BROADSIGN_VISTAR, BidOutcome.BID);
+        verify(vistarService, never()).callNotifyUrl(anyString());
+    }
+
+    @Test
+    void autoBidsCountScreensWithoutARouteAsNoMapping() throws Exception {
+        BidRequest bidRequest = bidRequest(1000);
+        bidRequest.getDevice().setUniqueScreenId("unmapped");
+
+        assertThrows(ResponseStatusException.class, () -> bidService.autoBiddingRequest(bidRequest,
+                EnumSet.of(BroadsignPartner.BROADSIGN_HIVESTACK, BroadsignPartner.BROADSIGN_VISTAR), System.nanoTime()).block());
+        verify(starproxyMetrics).outcome(BroadsignPartner.BROADSIGN_HIVESTACK, BidOutcome.NO_MAPPING);
+        verify(starproxyMetrics).outcome(BroadsignPartner.BROADSIGN_VISTAR, BidOutcome.NO_MAPPING);
+        verify(starproxyMetrics, never()).outcome(BroadsignPartner.BROADSIGN_VISTAR_FR, BidOutcome.NO_MAPPING);
+    }
+}
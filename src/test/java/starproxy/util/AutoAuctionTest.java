@@ -0,0 +1,107 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import starproxy.enums.AutoBidStrategy;
+import starproxy.enums.BroadsignPartner;
+import starproxy.model.bidResponse.Bid;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static starproxy.enums.BroadsignPartner.*;
+import static starproxy.util.AutoAuction.Result.*;
+
+class AutoAuctionTest {
+
+    private static final List<BroadsignPartner> PRIORITY = Arrays.asList(BROADSIGN_HIVESTACK, BROADSIGN_VISTAR, BROADSIGN_VISTAR_FR);
+
+    private static AutoAuction auction(AutoBidStrategy strategy) {
+        return new AutoAuction(strategy, PRIORITY, EnumSet.of(BROADSIGN_HIVESTACK, BROADSIGN_VISTAR));
+    }
+
+    private static Bid bid(double price) {
+        Bid bid = new Bid();
+        bid.setId("ad");
+        bid.setPrice(price);
+        return bid;
+    }
+
+    @Test
+    void firstTakesTheFirstBid() {
+        AutoAuction auction = auction(AutoBidStrategy.FIRST);
+        assertEquals(PENDING, auction.offer(BROADSIGN_HIVESTACK, null));
+        Bid vistar = bid(0.01);
+        assertEquals(DECIDED, auction.offer(BROADSIGN_VISTAR, vistar));
+        assertSame(vistar, auction.getWinner().getBid());
+        assertTrue(auction.getLosers().isEmpty());
+    }
+
+    @Test
+    void priorityWaitsOnlyForHigherRankedPartners() {
+        AutoAuction auction = auction(AutoBidStrategy.PRIORITY);
+        Bid vistar = bid(0.01);
+        assertEquals(PENDING, auction.offer(BROADSIGN_VISTAR, vistar), "hivestack outranks vistar and is still pending");
+        Bid hivestack = bid(0.01);
+        assertEquals(DECIDED, auction.offer(BROADSIGN_HIVESTACK, hivestack));
+        assertSame(hivestack, auction.getWinner().getBid());
+        assertEquals(1, auction.getLosers().size());
+        assertSame(vistar, auction.getLosers().get(0).getBid());
+
+        AutoAuction decidedEarly = auction(AutoBidStrategy.PRIORITY);
+        assertEquals(DECIDED, decidedEarly.offer(BROADSIGN_HIVESTACK, bid(0.01)), "nothing pending outranks hivestack");
+    }
+
+    @Test
+    void priceWaitsForEveryoneAndBreaksTiesByPriority() {
+        AutoAuction auction = auction(AutoBidStrategy.PRICE);
+        assertEquals(PENDING, auction.offer(BROADSIGN_HIVESTACK, bid(0.01)));
+        Bid vistar = bid(0.02);
+        assertEquals(DECIDED, auction.offer(BROADSIGN_VISTAR, vistar));
+        assertSame(vistar, auction.getWinner().getBid());
+
+        AutoAuction tie = auction(AutoBidStrategy.PRICE);
+        tie.offer(BROADSIGN_VISTAR, bid(0.01));
+        tie.offer(BROADSIGN_HIVESTACK, bid(0.01));
+        assertEquals(BROADSIGN_HIVESTACK, tie.getWinner().getPartner());
+    }
+
+    @Test
+    void noBidsAtAll() {
+        AutoAuction auction = auction(AutoBidStrategy.PRIORITY);
+        assertEquals(PENDING, auction.offer(BROADSIGN_HIVESTACK, null));
+        assertEquals(DECIDED, auction.offer(BROADSIGN_VISTAR, null));
+        assertNull(auction.getWinner());
+
+        assertTrue(new AutoAuction(AutoBidStrategy.FIRST, PRIORITY, Collections.emptySet()).isDecided());
+    }
+
+    @Test
+    void answersAfterCloseAreLate() {
+        AutoAuction auction = auction(AutoBidStrategy.FIRST);
+        Bid hivestack = bid(0.01);
+        assertEquals(DECIDED, auction.offer(BROADSIGN_HIVESTACK, hivestack));
+        assertSame(hivestack, auction.close().getBid());
+        assertEquals(LATE, auction.offer(BROADSIGN_VISTAR, bid(0.02)));
+        assertSame(hivestack, auction.getWinner().getBid());
+        assertTrue(auction.getLosers().isEmpty());
+    }
+}
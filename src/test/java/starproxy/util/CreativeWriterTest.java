@@ -0,0 +1,121 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import starproxy.model.starproxy.Creatives;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.*;
+
+class CreativeWriterTest {
+
+    @TempDir
+    Path tempDir;
+
+    private CreativeWriter writer(JdbcTemplate jdbcTemplate, Path spoolFile) {
+        CreativeWriter writer = new CreativeWriter();
+        writer.jdbcTemplate = jdbcTemplate;
+        ReflectionTestUtils.setField(writer, "BATCH_SIZE", 2);
+        ReflectionTestUtils.setField(writer, "SPOOL_FILE", spoolFile.toString());
+        return writer;
+    }
+
+    private static Creatives creative(String reachId, String url) {
+        Creatives creative = new Creatives();
+        creative.setReachId(reachId);
+        creative.setHivestackUrl(url);
+        return creative;
+    }
+
+    @Test
+    void writesOneMultiRowUpsertPerBatch() {
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        CreativeWriter writer = writer(jdbcTemplate, tempDir.resolve("creatives.spool"));
+
+        writer.write(Arrays.asList(creative("1", "https://a.mp4"), creative(null, "https://b.mp4")));
+
+        verify(jdbcTemplate).update(CreativeWriter.INSERT + "(?, ?), (?, ?)" + CreativeWriter.ON_DUPLICATE,
+                "https://a.mp4", "1", "https://b.mp4", null);
+        assertFalse(Files.exists(tempDir.resolve("creatives.spool")));
+    }
+
+    @Test
+    void failedBatchesAreSpooledAndRetried() throws Exception {
+        Path spoolFile = tempDir.resolve("creatives.spool");
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.update(anyString(), (Object[]) any())).thenThrow(new DataAccessResourceFailureException("down"));
+        CreativeWriter writer = writer(jdbcTemplate, spoolFile);
+
+        writer.write(Arrays.asList(creative("1", "https://a.mp4"), creative(null, "https://b.mp4")));
+        writer.write(Arrays.asList(creative("3", "https://c.mp4")));
+        assertEquals(Arrays.asList("1\thttps://a.mp4", "\thttps://b.mp4", "3\thttps://c.mp4"), Files.readAllLines(spoolFile));
+
+        // still down: everything stays in the spool
+        writer.retrySpool();
+        assertEquals(3, Files.readAllLines(spoolFile).size());
+
+        reset(jdbcTemplate);
+        writer.retrySpool();
+        verify(jdbcTemplate).update(CreativeWriter.INSERT + "(?, ?), (?, ?)" + CreativeWriter.ON_DUPLICATE,
+                "https://a.mp4", "1", "https://b.mp4", null);
+        verify(jdbcTemplate).update(CreativeWriter.INSERT + "(?, ?)" + CreativeWriter.ON_DUPLICATE, "https://c.mp4", "3");
+        assertFalse(Files.exists(spoolFile));
+    }
+
+    @Test
+    void spoolCreatesItsDirectory() throws Exception {
+        Path spoolFile = tempDir.resolve("var/lib/starproxy/creatives.spool");
+        writer(mock(JdbcTemplate.class), spoolFile).spool(Arrays.asList(creative("1", "https://a.mp4")));
+        assertEquals(Arrays.asList("1\thttps://a.mp4"), Files.readAllLines(spoolFile));
+    }
+
+    @Test
+    void onlyAUniqueIndexOnTheUrlAloneCounts() throws Exception {
+        assertTrue(CreativeWriter.hasUniqueIndex(metaData(new Object[]{"uk_creatives_hivestack_url", false, "hivestack_url"}), null, null));
+        assertFalse(CreativeWriter.hasUniqueIndex(metaData(), null, null));
+        assertFalse(CreativeWriter.hasUniqueIndex(metaData(
+                new Object[]{"uk_url_reach", false, "hivestack_url"},
+                new Object[]{"uk_url_reach", false, "reach_id"}), null, null));
+        assertFalse(CreativeWriter.hasUniqueIndex(metaData(new Object[]{"ix_url", true, "hivestack_url"}), null, null));
+    }
+
+    // index info rows of index name, non unique and column name
+    private static DatabaseMetaData metaData(Object[]... rows) throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        int[] row = {-1};
+        when(resultSet.next()).thenAnswer(invocation -> ++row[0] < rows.length);
+        when(resultSet.getString("INDEX_NAME")).thenAnswer(invocation -> rows[row[0]][0]);
+        when(resultSet.getBoolean("NON_UNIQUE")).thenAnswer(invocation -> rows[row[0]][1]);
+        when(resultSet.getString("COLUMN_NAME")).thenAnswer(invocation -> rows[row[0]][2]);
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(metaData.getIndexInfo(null, null, CreativeWriter.TABLE, true, false)).thenReturn(resultSet);
+        return metaData;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import starproxy.model.hivestack.ScheduledVast;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HivestackVastParserTest {
+
+    private static final String SCHEDULED_VIDEO = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<VAST version=\"2.0\">\n" +
+            "  <Ad id=\"1\">\n" +
+            "    <InLine>\n" +
+            "      <AdSystem>Hivestack</AdSystem>\n" +
+            "      <Impression><![CDATA[ https://apps.hivestack.com/pop?id=123&x=1 ]]></Impression>\n" +
+            "      <Creatives>\n" +
+            "        <Creative>\n" +
+            "          <Linear>\n" +
+            "            <Duration>00:00:10</Duration>\n" +
+            "            <MediaFiles>\n" +
+            "              <MediaFile type=\"video/mp4\" width=\"1920\" height=\"1080\">\n" +
+            "                <![CDATA[https://cdn.hivestack.com/creative/abc.mp4]]>\n" +
+            "              </MediaFile>\n" +
+            "              <MediaFile type=\"image/jpeg\"><![CDATA[https://cdn.hivestack.com/creative/abc.jpg]]></MediaFile>\n" +
+            "            </MediaFiles>\n" +
+            "          </Linear>\n" +
+            "        </Creative>\n" +
+            "      </Creatives>\n" +
+            "    </InLine>\n" +
+            "  </Ad>\n" +
+            "</VAST>";
+
+    @Test
+    void parsesFirstMediaFileAndImpression() throws Exception {
+        ScheduledVast vast = HivestackVastParser.parse(SCHEDULED_VIDEO);
+        assertNotNull(vast);
+        assertEquals("https://apps.hivestack.com/pop?id=123&x=1", vast.getImpressionUrl());
+        assertEquals("video/mp4", vast.getMediaType());
+        assertEquals("https://cdn.hivestack.com/creative/abc.mp4", vast.getMediaFile());
+    }
+
+    @Test
+    void nothingScheduled() throws Exception {
+        assertNull(HivestackVastParser.parse("<VAST version=\"2.0\">\n  </VAST>"));
+        assertNull(HivestackVastParser.parse("<VAST version=\"2.0\"/>"));
+    }
+
+    @Test
+    void ignoresOtherVersionsAndAds() throws Exception {
+        assertNull(HivestackVastParser.parse(SCHEDULED_VIDEO.replace("version=\"2.0\"", "version=\"3.0\"")));
+
+        ScheduledVast otherAd = HivestackVastParser.parse(SCHEDULED_VIDEO.replace("<Ad id=\"1\">", "<Ad id=\"2\">"));
+        assertNotNull(otherAd);
+        assertEquals("", otherAd.getImpressionUrl());
+        assertEquals("", otherAd.getMediaType());
+        assertEquals("", otherAd.getMediaFile());
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import starproxy.enums.BroadsignPartner;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NotificationUrlsTest {
+
+    private static NotificationUrls notificationUrls() {
+        NotificationUrls notificationUrls = new NotificationUrls();
+        ReflectionTestUtils.setField(notificationUrls, "VASTSERVER_BASE_URL", "https://starproxy.example.com");
+        ReflectionTestUtils.setField(notificationUrls, "CONTEXT_PATH", "/starproxy");
+        ReflectionTestUtils.setField(notificationUrls, "NURL", "/win?auction=%24%7BAUCTION_ID%7D&bid=%24%7BAUCTION_BID_ID%7D&adid=%24%7BAUCTION_AD_ID%7D");
+        ReflectionTestUtils.setField(notificationUrls, "LURL", "/loss?auction=%24%7BAUCTION_ID%7D&bid=%24%7BAUCTION_BID_ID%7D&loss=%24%7BAUCTION_LOSS%7D&adid=%24%7BAUCTION_AD_ID%7D");
+        notificationUrls.init();
+        return notificationUrls;
+    }
+
+    @Test
+    void winAndLossUrlsCarryPartnerAndDevice() {
+        NotificationUrls notificationUrls = notificationUrls();
+        assertEquals("https://starproxy.example.com/starproxy/win?auction=${AUCTION_ID}&bid=${AUCTION_BID_ID}&adid=${AUCTION_AD_ID}&partner=Hivestack&device=reach-1",
+                notificationUrls.win(BroadsignPartner.BROADSIGN_HIVESTACK, "reach-1"));
+        assertEquals("https://starproxy.example.com/starproxy/loss?auction=${AUCTION_ID}&bid=${AUCTION_BID_ID}&loss=${AUCTION_LOSS}&adid=${AUCTION_AD_ID}&partner=Hivestack&device=reach-1",
+                notificationUrls.loss(BroadsignPartner.BROADSIGN_HIVESTACK, "reach-1"));
+        assertEquals("https://starproxy.example.com/starproxy/win?auction=${AUCTION_ID}&bid=${AUCTION_BID_ID}&adid=${AUCTION_AD_ID}&partner=Vistar_FR&device=reach-2",
+                notificationUrls.win(BroadsignPartner.BROADSIGN_VISTAR_FR, "reach-2"));
+    }
+
+    @Test
+    void vistarLossUrlCarriesTheEncodedExpirationUrl() {
+        assertEquals("https://starproxy.example.com/starproxy/loss?auction=${AUCTION_ID}&bid=${AUCTION_BID_ID}&loss=${AUCTION_LOSS}&adid=${AUCTION_AD_ID}"
+                        + "&lossurl=https%3A%2F%2Fvistar.example.com%2Fexpire%3Fid%3D1%26t%3D2&partner=Vistar_EN&device=reach-3",
+                notificationUrls().loss(BroadsignPartner.BROADSIGN_VISTAR, "reach-3", "https://vistar.example.com/expire?id=1&t=2"));
+    }
+
+    @Test
+    void missingExpirationUrlFailsLikeBefore() {
+        assertThrows(NullPointerException.class, () -> notificationUrls().loss(BroadsignPartner.BROADSIGN_VISTAR, "reach-3", null));
+    }
+}
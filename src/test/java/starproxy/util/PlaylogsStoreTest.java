@@ -0,0 +1,96 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatchers;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import starproxy.model.starproxy.PlaylogRecord;
+import starproxy.repository.PlaylogsRepository;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.time.Instant;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class PlaylogsStoreTest {
+
+    private static PlaylogsStore store(PlaylogsRepository repository, boolean updatedAtColumn) {
+        PlaylogsStore store = new PlaylogsStore();
+        store.playlogsRepository = repository;
+        store.jdbcTemplate = mock(JdbcTemplate.class);
+        when(store.jdbcTemplate.execute(ArgumentMatchers.<ConnectionCallback<Boolean>>any())).thenReturn(updatedAtColumn);
+        ReflectionTestUtils.setField(store, "FULL_SYNC_INTERVAL_MS", 3600000L);
+        ReflectionTestUtils.setField(store, "SYNC_OVERLAP_MS", 5000L);
+        return store;
+    }
+
+    private static PlaylogRecord record(int id, Instant updatedAt) {
+        return new PlaylogRecord(id, "ifa" + id, null, "1", "EN", "0", "generator:" + id, 1920, 1080, updatedAt);
+    }
+
+    @Test
+    void syncsDeltasFromTheUpdatedAtColumn() {
+        PlaylogsRepository repository = mock(PlaylogsRepository.class);
+        Instant updatedAt = Instant.parse("2020-10-01T00:00:00Z");
+        when(repository.findAllRecords()).thenReturn(Collections.singletonList(record(1, updatedAt)));
+        when(repository.findRecordsUpdatedSince(any())).thenReturn(Collections.singletonList(record(2, updatedAt)));
+        PlaylogsStore store = store(repository, true);
+
+        store.init();
+        store.sync();
+
+        verify(repository).findAllRecords();
+        verify(repository).findRecordsUpdatedSince(updatedAt.minusMillis(5000));
+        assertEquals(2, store.getPlaylogs().size());
+    }
+
+    @Test
+    void withoutTheUpdatedAtColumnEverySyncIsAFullLoad() {
+        PlaylogsRepository repository = mock(PlaylogsRepository.class);
+        when(repository.findAllRecordsWithoutUpdatedAt()).thenReturn(Collections.singletonList(record(1, null)));
+        PlaylogsStore store = store(repository, false);
+
+        store.init();
+        store.sync();
+
+        verify(repository, times(2)).findAllRecordsWithoutUpdatedAt();
+        verify(repository, never()).findAllRecords();
+        verify(repository, never()).findRecordsUpdatedSince(any());
+        assertEquals(1, store.getPlaylogs().size());
+    }
+
+    @Test
+    void findsTheUpdatedAtColumn() throws Exception {
+        assertTrue(PlaylogsStore.hasUpdatedAt(metaData(true), null, null));
+        assertFalse(PlaylogsStore.hasUpdatedAt(metaData(false), null, null));
+    }
+
+    private static DatabaseMetaData metaData(boolean column) throws Exception {
+        ResultSet resultSet = mock(ResultSet.class);
+        when(resultSet.next()).thenReturn(column);
+        DatabaseMetaData metaData = mock(DatabaseMetaData.class);
+        when(metaData.getColumns(null, null, PlaylogsStore.TABLE, PlaylogsStore.UPDATED_AT_COLUMN)).thenReturn(resultSet);
+        return metaData;
+    }
+}
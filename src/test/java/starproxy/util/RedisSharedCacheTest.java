@@ -0,0 +1,76 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RedisSharedCacheTest {
+
+    @Test
+    void replicasShareDocuments() throws Exception {
+        try (RespStandInServer server = new RespStandInServer();
+             RedisSharedCache first = new RedisSharedCache(server.uri(), "starproxy:", Duration.ofSeconds(2));
+             RedisSharedCache second = new RedisSharedCache(server.uri(), "starproxy:", Duration.ofSeconds(2))) {
+            byte[] document = "<VAST version=\"2.0\"/>".getBytes(StandardCharsets.UTF_8);
+            first.put("vast:screen1", document, 60000);
+            // the write is fire and forget, a read on the same connection is ordered after it
+            assertArrayEquals(document, first.get("vast:screen1"));
+            assertArrayEquals(document, second.get("vast:screen1"));
+            assertNull(second.get("vast:screen2"));
+        }
+    }
+
+    @Test
+    void entriesExpire() throws Exception {
+        try (RespStandInServer server = new RespStandInServer();
+             RedisSharedCache cache = new RedisSharedCache(server.uri(), "starproxy:", Duration.ofSeconds(2))) {
+            cache.put("vast:screen1", new byte[]{1}, 1);
+            Thread.sleep(20);
+            assertNull(cache.get("vast:screen1"));
+        }
+    }
+
+    @Test
+    void startsWithoutTheServerAndConnectsOnceItIsUp() throws Exception {
+        RespStandInServer stopped = new RespStandInServer();
+        int port = stopped.port();
+        String uri = stopped.uri();
+        stopped.close();
+
+        try (RedisSharedCache cache = new RedisSharedCache(uri, "starproxy:", Duration.ofSeconds(2), Duration.ofMillis(50))) {
+            // not reachable: writes are dropped and reads are misses, nothing is thrown
+            cache.put("vast:screen1", new byte[]{1}, 60000);
+            assertNull(cache.get("vast:screen1"));
+            assertFalse(cache.isConnected());
+
+            try (RespStandInServer server = new RespStandInServer(port)) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (!cache.isConnected() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(20);
+                }
+                assertTrue(cache.isConnected());
+                cache.put("vast:screen1", new byte[]{1}, 60000);
+                assertArrayEquals(new byte[]{1}, cache.get("vast:screen1"));
+            }
+        }
+    }
+}
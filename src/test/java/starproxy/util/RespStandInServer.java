@@ -0,0 +1,167 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Just enough of the Redis protocol (PING, GET, SET with PX, DEL) to stand in for a shared cache server in tests.
+ */
+class RespStandInServer implements AutoCloseable {
+
+    private static final class Value {
+        final byte[] bytes;
+        final long expiresAt;
+
+        Value(byte[] bytes, long expiresAt) {
+            this.bytes = bytes;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final ServerSocket serverSocket;
+    private final Map<String, Value> data = new ConcurrentHashMap<>();
+
+    RespStandInServer() throws IOException {
+        this(0);
+    }
+
+    RespStandInServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "resp-stand-in");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    String uri() {
+        return "redis://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread connection = new Thread(() -> serve(socket), "resp-stand-in-connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             OutputStream out = new BufferedOutputStream(socket.getOutputStream())) {
+            while (true) {
+                List<byte[]> command = readCommand(in);
+                if (command == null) {
+                    return;
+                }
+                reply(command, out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // client went away
+        }
+    }
+
+    private void reply(List<byte[]> command, OutputStream out) throws IOException {
+        String name = new String(command.get(0), StandardCharsets.UTF_8).toUpperCase();
+        switch (name) {
+            case "PING":
+                out.write("+PONG\r\n".getBytes(StandardCharsets.UTF_8));
+                break;
+            case "SET":
+                long expiresAt = Long.MAX_VALUE;
+                if (command.size() == 5 && "PX".equalsIgnoreCase(new String(command.get(3), StandardCharsets.UTF_8))) {
+                    expiresAt = System.currentTimeMillis() + Long.parseLong(new String(command.get(4), StandardCharsets.UTF_8));
+                }
+                data.put(key(command), new Value(command.get(2), expiresAt));
+                out.write("+OK\r\n".getBytes(StandardCharsets.UTF_8));
+                break;
+            case "GET":
+                Value value = data.get(key(command));
+                if (value == null || value.expiresAt <= System.currentTimeMillis()) {
+                    out.write("$-1\r\n".getBytes(StandardCharsets.UTF_8));
+                } else {
+                    out.write(("$" + value.bytes.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+                    out.write(value.bytes);
+                    out.write("\r\n".getBytes(StandardCharsets.UTF_8));
+                }
+                break;
+            case "DEL":
+                out.write((":" + (data.remove(key(command)) == null ? 0 : 1) + "\r\n").getBytes(StandardCharsets.UTF_8));
+                break;
+            default:
+                // clients probing for RESP3 (HELLO) fall back to RESP2 on this
+                out.write(("-ERR unknown command '" + name + "'\r\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String key(List<byte[]> command) {
+        return new String(command.get(1), StandardCharsets.UTF_8);
+    }
+
+    private static List<byte[]> readCommand(DataInputStream in) throws IOException {
+        String header = readLine(in);
+        if (header == null) {
+            return null;
+        }
+        int count = Integer.parseInt(header.substring(1));
+        List<byte[]> parts = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int length = Integer.parseInt(readLine(in).substring(1));
+            byte[] part = new byte[length];
+            in.readFully(part);
+            in.readFully(new byte[2]);
+            parts.add(part);
+        }
+        return parts;
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\r') {
+            if (c == -1) {
+                return null;
+            }
+            line.append((char) c);
+        }
+        in.read();
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void concurrentCallersShareOneCall() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        AtomicInteger calls = new AtomicInteger();
+        MonoProcessor<String> response = MonoProcessor.create();
+
+        Mono<String> first = singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            return response;
+        }).cache();
+        Mono<String> second = singleFlight.execute("key", () -> {
+            calls.incrementAndGet();
+            return Mono.just("other");
+        }).cache();
+        first.subscribe();
+        second.subscribe();
+        assertTrue(singleFlight.isInFlight("key"));
+
+        response.onNext("token");
+        assertEquals("token", first.block());
+        assertEquals("token", second.block());
+        assertEquals(1, calls.get());
+        assertFalse(singleFlight.isInFlight("key"));
+    }
+
+    @Test
+    void failedCallIsNotKept() {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>();
+        assertThrows(IllegalStateException.class,
+                () -> singleFlight.execute("key", () -> Mono.error(new IllegalStateException())).block());
+        assertEquals("token", singleFlight.execute("key", () -> Mono.just("token")).block());
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenBucketTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    void burstThenSpacedPermits() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(10, 3);
+        assertEquals(0, bucket.reserve(now));
+        assertEquals(0, bucket.reserve(now));
+        assertEquals(0, bucket.reserve(now));
+        assertEquals(SECOND / 10, bucket.reserve(now));
+        assertEquals(2 * SECOND / 10, bucket.reserve(now));
+    }
+
+    @Test
+    void refillsOverTime() {
+        long now = System.nanoTime() + SECOND;
+        TokenBucket bucket = new TokenBucket(10, 1);
+        assertEquals(0, bucket.reserve(now));
+        assertEquals(SECOND / 10, bucket.reserve(now));
+        // both reserved permits have been used up by then
+        assertEquals(0, bucket.reserve(now + SECOND));
+    }
+
+    @Test
+    void rejectsInvalidSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 1));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(1, 0));
+    }
+}
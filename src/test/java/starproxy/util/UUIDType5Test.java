@@ -18,6 +18,17 @@ package starproxy.util;
 
 import org.junit.jupiter.api.Test;
 
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class UUIDType5Test {
@@ -29,4 +40,90 @@ class UUIDType5Test {
         assertEquals("5637087f-e266-50e0-88a5-e3f800a65b72", UUIDType5.fromUrlWithStarProxyNamespace("http://google.com"));
         assertEquals("5637087f-e266-50e0-88a5-e3f800a65b72", UUIDType5.fromUrlWithStarProxyNamespace("http://google.com?somequerystring"));
     }
-}
\ No newline at end of file
+
+    @Test
+    void stripQueryMatchesUriRoundTrip() throws Exception {
+        List<String> urls = Arrays.asList(
+                "http://cow.org",
+                "http://cow.org?",
+                "https://cdn.example.com/assets/ad-1.mp4?sig=abc&exp=123",
+                "https://cdn.example.com:8443/a/b.png?x=1#frag",
+                "https://cdn.example.com/a/b.png#frag?not=query",
+                "https://user@cdn.example.com/a;p=1/b.jpg?x",
+                "https://cdn.example.com/a%20b/c%2Fd.mp4?x=1",
+                "https://cdn.example.com/caf\u00e9.mp4?x=1",
+                "https://cdn.example.com/a?b?c",
+                "https://[::1]:8080/a.mp4?x",
+                "http:///no-authority?x",
+                "relative/path.mp4?x=1");
+        for (String url : urls) {
+            assertEquals(viaUri(url), UUIDType5.stripQuery(url), url);
+        }
+        // the round trip rejects these, and so must the fast path
+        for (String url : Arrays.asList("https://cdn.example.com/a b.mp4", "https://cdn.example.com/a#b#c", "mailto:someone@example.com")) {
+            assertThrows(URISyntaxException.class, () -> viaUri(url), url);
+            assertThrows(URISyntaxException.class, () -> UUIDType5.stripQuery(url), url);
+        }
+    }
+
+    @Test
+    void memoizedAndRepeatedCallsAgree() throws Exception {
+        String url = "https://cdn.example.com/assets/memo.mp4?sig=1";
+        UUID first = UUIDType5.uuidFromUrlWithStarProxyNamespace(url);
+        assertEquals(first, UUIDType5.uuidFromUrlWithStarProxyNamespace(url));
+        assertEquals(first, UUIDType5.uuidFromUrlWithStarProxyNamespace("https://cdn.example.com/assets/memo.mp4?sig=2"));
+        assertEquals(first, UUIDType5.nameUUIDFromNamespaceAndString(UUIDType5.NAMESPACE_STAR, "https://cdn.example.com/assets/memo.mp4"));
+        // well past the memo's capacity, so entries are evicted along the way
+        for (int i = 0; i < UUIDType5.MEMO_CAPACITY + 10; i++) {
+            UUIDType5.uuidFromUrlWithStarProxyNamespace("https://cdn.example.com/assets/" + i + ".mp4");
+        }
+        assertTrue(UUIDType5.memoSize() <= UUIDType5.MEMO_CAPACITY);
+        assertTrue(UUIDType5.memoSize() > UUIDType5.MEMO_CAPACITY / 2, "a full memo is trimmed, not cleared");
+        assertEquals(first, UUIDType5.uuidFromUrlWithStarProxyNamespace(url));
+    }
+
+    @Test
+    void cacheBustedUrlsShareOneMemoEntry() throws Exception {
+        String asset = "https://cdn.example.com/assets/signed.mp4";
+        UUIDType5.uuidFromUrlWithStarProxyNamespace(asset + "?sig=0");
+        int size = UUIDType5.memoSize();
+        for (int i = 1; i < 100; i++) {
+            UUIDType5.uuidFromUrlWithStarProxyNamespace(asset + "?sig=" + i + "&cb=" + System.nanoTime());
+        }
+        assertEquals(size, UUIDType5.memoSize());
+    }
+
+    @Test
+    void concurrentCallsShareNoDigestState() throws Exception {
+        List<String> urls = IntStream.range(0, 200)
+                .mapToObj(i -> "https://cdn.example.com/concurrent/" + i + ".mp4")
+                .collect(Collectors.toList());
+        List<UUID> expected = urls.stream()
+                .map(url -> UUIDType5.nameUUIDFromNamespaceAndString(UUIDType5.NAMESPACE_STAR, url))
+                .collect(Collectors.toList());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<?>[] futures = new Future<?>[4];
+            for (int t = 0; t < futures.length; t++) {
+                futures[t] = executor.submit(() -> {
+                    for (int round = 0; round < 50; round++) {
+                        for (int i = 0; i < urls.size(); i++) {
+                            assertEquals(expected.get(i), UUIDType5.nameUUIDFromNamespaceAndString(UUIDType5.NAMESPACE_STAR, urls.get(i)));
+                        }
+                    }
+                    return null;
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static String viaUri(String url) throws URISyntaxException {
+        URI uri = new URI(url);
+        return new URI(uri.getScheme(), uri.getAuthority(), uri.getPath(), null, uri.getFragment()).toString();
+    }
+}
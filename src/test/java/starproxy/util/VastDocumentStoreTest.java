@@ -0,0 +1,77 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VastDocumentStoreTest {
+
+    private static VastDocumentStore store(long maxBytes, long ttlMs) {
+        VastDocumentStore store = new VastDocumentStore();
+        ReflectionTestUtils.setField(store, "MAX_BYTES", maxBytes);
+        ReflectionTestUtils.setField(store, "SEGMENT_COUNT", 1);
+        ReflectionTestUtils.setField(store, "TTL_MS", ttlMs);
+        store.init();
+        return store;
+    }
+
+    private static String read(VastDocumentStore store, String id) throws IOException {
+        StringBuilder result = new StringBuilder();
+        boolean found = store.read(id, document -> {
+            byte[] bytes = new byte[document.remaining()];
+            document.get(bytes);
+            result.append(new String(bytes, StandardCharsets.UTF_8));
+        });
+        return found ? result.toString() : null;
+    }
+
+    @Test
+    void storesAndReplacesDocuments() throws IOException {
+        VastDocumentStore store = store(1024, 60000);
+        assertTrue(store.put("a1", "<VAST>é</VAST>".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("<VAST>é</VAST>", read(store, "a1"));
+        assertTrue(store.put("a1", "<VAST/>".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("<VAST/>", read(store, "a1"));
+        assertNull(read(store, "b1"));
+    }
+
+    @Test
+    void oldestDocumentsAreOverwrittenWhenFull() throws IOException {
+        VastDocumentStore store = store(100, 60000);
+        store.put("first", new byte[40]);
+        store.put("second", new byte[40]);
+        // doesn't fit behind second, wraps to the start over first
+        store.put("third", new byte[40]);
+        assertNull(read(store, "first"));
+        assertNotNull(read(store, "second"));
+        assertNotNull(read(store, "third"));
+        assertFalse(store.put("huge", new byte[101]));
+    }
+
+    @Test
+    void expiredDocumentsAreNotServed() throws IOException {
+        VastDocumentStore store = store(1024, -1);
+        store.put("a1", new byte[10]);
+        assertNull(read(store, "a1"));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VastDocumentsTest {
+
+    private static String render(byte[] entry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(entry);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        VastDocuments.writeTo(buffer, out);
+        assertEquals(VastDocuments.renderedLength(buffer), out.size());
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void vistarRendersLikeTheFormatString() throws IOException {
+        String expected = String.format(VastDocuments.VISTAR_VAST_TEMPLATE,
+                "https://pop.vistarmedia.com/é?x=1&y=2", "00:01:05", 1920, 1080, "video/mp4", "https://cdn.vistarmedia.com/a.mp4");
+        assertEquals(expected, render(VastDocuments.vistar(
+                "https://pop.vistarmedia.com/é?x=1&y=2", 65_400, 1920, 1080, "video/mp4", "https://cdn.vistarmedia.com/a.mp4")));
+    }
+
+    @Test
+    void rawIsServedAsIs() throws IOException {
+        assertEquals("<VAST version=\"2.0\">ü</VAST>", render(VastDocuments.raw("<VAST version=\"2.0\">ü</VAST>")));
+    }
+
+    @Test
+    void duration() {
+        assertEquals("00:00:00", VastDocuments.duration(999));
+        assertEquals("01:02:03", VastDocuments.duration(3_723_000));
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2020 Pattison Outdoor Advertising LP
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package starproxy.util;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VastRoutingTest {
+
+    private static final String SECRET = "0123456789abcdef0123456789abcdef";
+    private static final String OTHER_SECRET = "fedcba9876543210fedcba9876543210";
+
+    private static VastRouting routing(String secret, String nodeUrl) {
+        VastRouting routing = new VastRouting();
+        ReflectionTestUtils.setField(routing, "ROUTING_ENABLED", true);
+        ReflectionTestUtils.setField(routing, "ROUTING_SECRET", secret);
+        ReflectionTestUtils.setField(routing, "NODE_URL", nodeUrl);
+        ReflectionTestUtils.setField(routing, "PEER_URL_PATTERN", "http://10\\.0\\.0\\.\\d{1,3}:8080/starproxy");
+        ReflectionTestUtils.setField(routing, "TOKEN_TTL_MS", 900000L);
+        routing.init();
+        return routing;
+    }
+
+    private static String token(String query) {
+        return query.substring(("?" + VastRouting.TOKEN_PARAMETER + "=").length());
+    }
+
+    @Test
+    void inlineTokensCarryTheEntry() {
+        VastRouting routing = routing(SECRET, "http://10.0.0.1:8080/starproxy");
+        byte[] entry = VastDocuments.vistar("https://pop", 15000, 1920, 1080, "video/mp4", "https://asset.mp4");
+
+        VastRouting.Route route = routing.verify("venue", "imp1", token(routing.inlineQuery("venue", "imp1", entry)));
+        assertNotNull(route);
+        assertArrayEquals(entry, route.getEntry());
+        assertNull(route.getNodeUrl());
+    }
+
+    @Test
+    void nodeTokensCarryTheOwner() {
+        VastRouting owner = routing(SECRET, "http://10.0.0.1:8080/starproxy");
+        VastRouting other = routing(SECRET, "http://10.0.0.2:8080/starproxy");
+
+        VastRouting.Route route = other.verify("ifa", "imp1", token(owner.nodeQuery("ifa", "imp1")));
+        assertNotNull(route);
+        assertNull(route.getEntry());
+        assertEquals("http://10.0.0.1:8080/starproxy", route.getNodeUrl());
+    }
+
+    @Test
+    void nodeTokensNamingAnythingButAPeerAreRejected() {
+        VastRouting outsider = routing(SECRET, "http://169.254.169.254/latest/meta-data");
+        VastRouting other = routing(SECRET, "http://10.0.0.2:8080/starproxy");
+
+        assertNull(other.verify("ifa", "imp1", token(outsider.nodeQuery("ifa", "imp1"))));
+        assertNotNull(outsider.verify("ifa", "imp1", token(outsider.inlineQuery("ifa", "imp1", VastDocuments.raw("<VAST/>")))));
+    }
+
+    @Test
+    void refusesToStartWithAPlaceholderOrShortSecret() {
+        assertThrows(IllegalStateException.class, () -> routing("DEFINE_OR_INJECT", "http://10.0.0.1:8080/starproxy"));
+        assertThrows(IllegalStateException.class, () -> routing("secret", "http://10.0.0.1:8080/starproxy"));
+
+        VastRouting disabled = new VastRouting();
+        ReflectionTestUtils.setField(disabled, "ROUTING_ENABLED", false);
+        ReflectionTestUtils.setField(disabled, "ROUTING_SECRET", "DEFINE_OR_INJECT");
+        ReflectionTestUtils.setField(disabled, "PEER_URL_PATTERN", "DEFINE_OR_INJECT");
+        disabled.init();
+    }
+
+    @Test
+    void rejectsTokensSignedForAnotherDocumentOrSecret() {
+        VastRouting routing = routing(SECRET, "http://10.0.0.1:8080/starproxy");
+        String token = token(routing.inlineQuery("venue", "imp1", VastDocuments.raw("<VAST/>")));
+
+        assertNull(routing.verify("venue", "imp2", token));
+        assertNull(routing.verify("other", "imp1", token));
+        assertNull(routing(OTHER_SECRET, "http://10.0.0.1:8080/starproxy").verify("venue", "imp1", token));
+        assertNull(routing.verify("venue", "imp1", null));
+        assertNull(routing.verify("venue", "imp1", "not a token"));
+
+        byte[] tampered = Base64.getUrlDecoder().decode(token);
+        tampered[2] ^= 1;
+        assertNull(routing.verify("venue", "imp1", Base64.getUrlEncoder().withoutPadding().encodeToString(tampered)));
+        assertNotNull(routing.verify("venue", "imp1", token));
+    }
+
+    @Test
+    void rejectsExpiredTokens() {
+        VastRouting routing = routing(SECRET, "http://10.0.0.1:8080/starproxy");
+        ReflectionTestUtils.setField(routing, "TOKEN_TTL_MS", -1L);
+        byte[] entry = VastDocuments.raw("<VAST/>");
+        assertNull(routing.verify("venue", "imp1", token(routing.inlineQuery("venue", "imp1", entry))));
+        assertNull(routing.verify("ifa", "imp1", token(routing.nodeQuery("ifa", "imp1"))));
+
+        // pushing the expiry out breaks the signature
+        ReflectionTestUtils.setField(routing, "TOKEN_TTL_MS", 900000L);
+        byte[] extended = Base64.getUrlDecoder().decode(token(routing.inlineQuery("venue", "imp1", entry)));
+        extended[1] ^= 1;
+        assertNull(routing.verify("venue", "imp1", Base64.getUrlEncoder().withoutPadding().encodeToString(extended)));
+    }
+
+    @Test
+    void disabledRoutingAddsNothing() {
+        VastRouting routing = routing(SECRET, "http://10.0.0.1:8080/starproxy");
+        ReflectionTestUtils.setField(routing, "ROUTING_ENABLED", false);
+        assertEquals("", routing.nodeQuery("ifa", "imp1"));
+        assertEquals("", routing.inlineQuery("ifa", "imp1", "<VAST/>".getBytes(StandardCharsets.UTF_8)));
+    }
+}